@@ -0,0 +1,184 @@
+/*****************************************************************************
+  BackgroundThreshold.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+
+package edu.duke.igsp.gkde;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import edu.duke.igsp.gkde.KDEChromosome.Settings;
+
+/**
+ * Mean and standard deviation of the density at a base of a genome whose
+ * cuts fall uniformly at random, for the genome-wide threshold.
+ *
+ * The simulation draws the cuts of one window per iteration and sums the
+ * kernel over them. The sum does not depend on the order of the cuts, so
+ * they are neither sorted nor generated in order. Iterations run in fixed
+ * chunks, each with its own SplittableRandom split off the seeded root in
+ * chunk order, so a seed gives the same result on any number of threads.
+ *
+ * The Poisson model has the number of cuts on every base of the window
+ * drawn independently with mean rate; the kernel sum then has mean
+ * rate * sum(k) and variance rate * sum(k^2) over the kernel values k.
+ */
+class BackgroundThreshold {
+
+  static final int ITERATIONS = 10000;
+  private static final int CHUNK = 250;
+
+  final double mean;
+  final double std;
+
+  private BackgroundThreshold(double mean, double std){
+    this.mean = mean;
+    this.std = std;
+  }
+
+  /*
+   * The genome-wide threshold threshold standard deviations above the mean.
+   */
+  float threshold(float threshold){
+    return (float)(mean + threshold * std);
+  }
+
+  /*
+   * The same background with every cut weighted factor.
+   */
+  BackgroundThreshold scale(double factor){
+    return new BackgroundThreshold(mean * factor, std * factor);
+  }
+
+  /*
+   * Simulates ITERATIONS windows of cuts cuts each. Without a seed the result differs from run to run.
+   */
+  static BackgroundThreshold simulate(final Settings settings, final int cuts, Long seed, ForkJoinPool pool) throws Exception {
+    SplittableRandom root = seed == null ? new SplittableRandom() : new SplittableRandom(seed.longValue());
+    final double[] densities = new double[ITERATIONS];
+    int chunks = (ITERATIONS + CHUNK - 1) / CHUNK;
+    Future<?>[] pending = new Future<?>[chunks];
+    for(int c = 0; c < chunks; ++c){
+      final SplittableRandom r = root.split();
+      final int from = c * CHUNK;
+      final int to = Math.min(ITERATIONS, from + CHUNK);
+      Callable<Object> chunk = new Callable<Object>(){
+        public Object call() {
+          for(int i = from; i < to; ++i)
+            densities[i] = density(settings, cuts, r);
+          return null;
+        }
+      };
+      if(pool == null)
+        chunk.call();
+      else
+        pending[c] = pool.submit(chunk);
+    }
+    if(pool != null){
+      try {
+        for(int c = 0; c < chunks; ++c)
+          pending[c].get();
+      } catch (ExecutionException e){
+        if(e.getCause() instanceof Exception)
+          throw (Exception)e.getCause();
+        throw e;
+      }
+    }
+    return new BackgroundThreshold(Util.mean(densities), Util.std(densities));
+  }
+
+  /*
+   * The density at the centre of a window of 2 * window + 1 bases holding cuts random cuts.
+   */
+  private static float density(Settings settings, int cuts, SplittableRandom r){
+    double[] precompute = settings.precompute;
+    int window = (int)settings.window;
+    int totalWindow = 2 * window + 1;
+    double sum = 0.0;
+    for(int j = 0; j < cuts; ++j)
+      sum += precompute[Math.abs(r.nextInt(totalWindow) - window)];
+    return (float)(sum / (double)settings.bandwidth);
+  }
+
+  /*
+   * The closed form under the Poisson model with rate cuts per base.
+   */
+  static BackgroundThreshold poisson(Settings settings, double rate){
+    double[] precompute = settings.precompute;
+    double sum = precompute[0], squares = precompute[0] * precompute[0];
+    for(int d = 1; d < precompute.length; ++d){
+      sum += 2 * precompute[d];
+      squares += 2 * precompute[d] * precompute[d];
+    }
+    double bandwidth = settings.bandwidth;
+    return new BackgroundThreshold(rate * sum / bandwidth, Math.sqrt(rate * squares) / bandwidth);
+  }
+
+  /*
+   * The mean and deviation stored under key in a cache file, or null.
+   */
+  static BackgroundThreshold cached(File cache, String key) throws IOException {
+    if(!cache.exists())
+      return null;
+    Properties p = load(cache);
+    String value = p.getProperty(key);
+    if(value == null)
+      return null;
+    String[] arr = value.split(" ");
+    return new BackgroundThreshold(Double.parseDouble(arr[0]), Double.parseDouble(arr[1]));
+  }
+
+  /*
+   * Stores this result under key in a cache file, keeping the other entries.
+   */
+  void store(File cache, String key) throws IOException {
+    Properties p = cache.exists() ? load(cache) : new Properties();
+    p.setProperty(key, mean + " " + std);
+    OutputStream out = new FileOutputStream(cache);
+    try {
+      p.store(out, "F-seq genome-wide thresholds: model/kernel/window/bandwidth/total weight/cut density[/seed] = mean std");
+    } finally {
+      out.close();
+    }
+  }
+
+  private static Properties load(File cache) throws IOException {
+    Properties p = new Properties();
+    InputStream in = new FileInputStream(cache);
+    try {
+      p.load(in);
+    } finally {
+      in.close();
+    }
+    return p;
+  }
+}
@@ -0,0 +1,148 @@
+/*****************************************************************************
+  ChromosomeScheduler.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+package edu.duke.igsp.gkde;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs independent chromosomes on a fixed pool of worker threads.
+ *
+ * Tasks are started largest first, and a task is only started while the
+ * estimated heap cost of everything running stays within the memory budget.
+ * A task that is larger than the whole budget still runs, but on its own.
+ */
+public class ChromosomeScheduler {
+
+  private final int _threads;
+  private final long _budget;
+
+  private long _running = 0;
+  private int _active = 0;
+  private Throwable _failure = null;
+
+  public ChromosomeScheduler(int threads, long budget){
+    _threads = threads;
+    _budget = budget;
+  }
+
+  public void run(List<Task> tasks) throws Exception {
+    List<Task> pending = new ArrayList<Task>(tasks);
+    Collections.sort(pending, new Comparator<Task>(){
+      public int compare(Task a, Task b) {
+        if(a.cost > b.cost)
+          return -1;
+        else if(a.cost < b.cost)
+          return 1;
+        return 0;
+      }
+    });
+
+    ExecutorService pool = Executors.newFixedThreadPool(_threads);
+    try {
+      while(!pending.isEmpty()){
+        Task next = take(pending);
+        if(next == null)
+          break;
+        submit(pool, next);
+      }
+      synchronized(this){
+        while(_active > 0)
+          wait();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    if(_failure instanceof Exception)
+      throw (Exception)_failure;
+    if(_failure instanceof Error)
+      throw (Error)_failure;
+    if(_failure != null)
+      throw new Exception(_failure);
+  }
+
+  /*
+   * Blocks until a worker is free and at least one pending task fits into
+   * the remaining budget, then removes and returns the largest such task.
+   * Returns null if a previous task failed.
+   */
+  private synchronized Task take(List<Task> pending) throws InterruptedException {
+    while(true){
+      if(_failure != null)
+        return null;
+      if(_active < _threads){
+        for(int i = 0; i < pending.size(); ++i){
+          Task t = pending.get(i);
+          if(_active == 0 || _running + t.cost <= _budget){
+            pending.remove(i);
+            _running += t.cost;
+            ++_active;
+            return t;
+          }
+        }
+      }
+      wait();
+    }
+  }
+
+  private void submit(ExecutorService pool, final Task task){
+    pool.execute(new Runnable(){
+      public void run() {
+        // an Error, above all OutOfMemoryError, must still release the task or run() waits forever
+        Throwable failure = null;
+        try {
+          task.run();
+        } catch (Throwable e){
+          failure = e;
+        } finally {
+          finished(task, failure);
+        }
+      }
+    });
+  }
+
+  private synchronized void finished(Task task, Throwable failure){
+    _running -= task.cost;
+    --_active;
+    if(failure != null && _failure == null)
+      _failure = failure;
+    notifyAll();
+  }
+
+  /**
+   * A unit of work with its estimated heap cost in bytes.
+   */
+  public static abstract class Task {
+    final long cost;
+
+    public Task(long cost){
+      this.cost = cost;
+    }
+
+    public abstract void run() throws Exception;
+  }
+}
@@ -0,0 +1,151 @@
+/*****************************************************************************
+  CoarseDensity.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+
+package edu.duke.igsp.gkde;
+
+import java.util.Arrays;
+
+import edu.duke.igsp.gkde.KDEChromosome.Settings;
+
+/**
+ * Fast peak calling in two passes (-coarse). The first pass computes the
+ * density on a grid of every coarse-th base; grid points above half the
+ * threshold, padded by the kernel window on both sides, are the candidate
+ * bases. The second pass computes the exact density of the candidates and
+ * writes 0 for all other bases, which the peak writers ignore.
+ *
+ * A peak narrower than the grid between two points below half the
+ * threshold is missed, so this is not exact. With -recall every tile is
+ * also computed in full and report() gives the share of bases above the
+ * threshold the coarse run found.
+ */
+class CoarseDensity implements DensityEngine {
+
+  // grid points above this share of the threshold mark candidates
+  private static final float NEAR = 0.5f;
+
+  private final DensityEngine _engine;
+  private final int _grid;
+  private final int _window;
+  private final int _numBases;
+  private final float _threshold;
+  private final boolean _recall;
+
+  private long _bases = 0;
+  private long _computed = 0;
+  private long _above = 0;
+  private long _found = 0;
+
+  CoarseDensity(KDEChromosome chr, DensityEngine engine, Settings settings, float threshold){
+    _engine = engine;
+    _grid = settings.coarse;
+    _window = (int)settings.window;
+    _numBases = (int)(chr.getLastPos() - chr.getFirstPos());
+    _threshold = threshold;
+    _recall = settings.recall;
+  }
+
+  public void compute(int from, int len, float[] density){
+    // the grid points whose padding can reach the tile
+    int g0 = Math.max(0, from - _window);
+    g0 = (g0 + _grid - 1) / _grid * _grid;
+    int g1 = Math.min(_numBases - 1, from + len - 1 + _window);
+    boolean[] candidate = new boolean[len];
+    if(g0 <= g1){
+      int count = (g1 - g0) / _grid + 1;
+      float[] coarse = new float[count];
+      _engine.computeSampled(g0, _grid, count, coarse);
+      for(int k = 0; k < count; ++k){
+        if(coarse[k] > NEAR * _threshold){
+          int g = g0 + k * _grid - from;
+          Arrays.fill(candidate, Math.max(0, g - _window), Math.min(len, g + _window + 1), true);
+        }
+      }
+    }
+
+    float[] block = null;
+    long computed = 0;
+    for(int at = 0; at < len; ){
+      int end = at;
+      while(end < len && candidate[end] == candidate[at])
+        ++end;
+      if(!candidate[at]){
+        Arrays.fill(density, at, end, 0.0f);
+      }else if(at == 0){
+        _engine.compute(from, end, density);
+      }else{
+        if(block == null)
+          block = new float[len];
+        _engine.compute(from + at, end - at, block);
+        System.arraycopy(block, 0, density, at, end - at);
+      }
+      if(candidate[at])
+        computed += end - at;
+      at = end;
+    }
+
+    long above = 0, found = 0;
+    if(_recall){
+      float[] full = new float[len];
+      _engine.compute(from, len, full);
+      for(int j = 0; j < len; ++j){
+        if(full[j] > _threshold){
+          ++above;
+          if(density[j] > _threshold)
+            ++found;
+        }
+      }
+    }
+    count(len, computed, above, found);
+  }
+
+  public void computeSampled(int from, int step, int count, float[] density){
+    if(step == 1){
+      compute(from, count, density);
+      return;
+    }
+    _engine.computeSampled(from, step, count, density);
+    count(count, count, 0, 0);
+  }
+
+  private synchronized void count(long bases, long computed, long above, long found){
+    _bases += bases;
+    _computed += computed;
+    _above += above;
+    _found += found;
+  }
+
+  /*
+   * Prints the share of bases computed exactly and, with -recall, the recall of bases above the
+   * threshold against the full run; then the wrapped engine's report if it has one.
+   */
+  synchronized void report(String chromosome){
+    System.out.println(chromosome + ": computed " + _computed + " of " + _bases + " bases around the coarse grid ("
+        + (_bases == 0 ? 0 : (float)(100.0 * _computed / _bases)) + "%).");
+    if(_recall)
+      System.out.println(chromosome + ": found " + _found + " of " + _above + " bases above the threshold (recall "
+          + (_above == 0 ? 1 : (float)((double)_found / _above)) + ").");
+    if(_engine instanceof PlannedDensity)
+      ((PlannedDensity)_engine).report(chromosome);
+  }
+}
@@ -0,0 +1,50 @@
+/*****************************************************************************
+  ContiguousDensity.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+
+package edu.duke.igsp.gkde;
+
+/**
+ * Base class for the engines that work on whole runs of bases, like the
+ * transform and filter engines. Sampled values are picked out of contiguous
+ * runs of at most one tile, so stepping saves nothing but the writing.
+ */
+abstract class ContiguousDensity implements DensityEngine {
+
+  public void computeSampled(int from, int step, int count, float[] density){
+    if(step == 1){
+      compute(from, count, density);
+      return;
+    }
+    int perRun = Math.max(1, KDEChromosome.TILE_SIZE / step);
+    float[] run = null;
+    for(int j = 0; j < count; j += perRun){
+      int n = Math.min(perRun, count - j);
+      int len = (n - 1) * step + 1;
+      if(run == null)
+        run = new float[len];
+      compute(from + j * step, len, run);
+      for(int k = 0; k < n; ++k)
+        density[j + k] = run[k * step];
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*****************************************************************************
+  CutSpill.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+package edu.duke.igsp.gkde;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The cuts of one chromosome in a temporary file instead of the heap, so
+ * that a genome can be read in one pass and its chromosomes loaded, run
+ * and released one at a time.
+ *
+ * While the cuts are read, the counts that the genome-wide parameters need
+ * are kept: reads, total weight and the first and last cut. A cut takes
+ * eight bytes, its position (complemented on the minus strand) and its
+ * weight as a float, the same float CutBuffer keeps. load() therefore
+ * builds the same chromosome as reading it into memory would. Only a small
+ * buffer per chromosome is held, and it is appended to the file when full.
+ */
+public class CutSpill extends KDEChromosome.CutBuffer {
+
+  private static final int RECORDS = 4096;  // cuts buffered before they are appended
+
+  private final String _chromosome;
+  private final File _file;
+  private ByteBuffer _buffer = ByteBuffer.allocate(8 * RECORDS);
+  private long _reads = 0;
+  private double _totalWeight = 0.0;
+  private long _firstPos = Long.MAX_VALUE;
+  private long _lastPos = Long.MIN_VALUE;
+  private float _common = 1.0f;
+  private boolean _weighted = false;  // true once two reads differ in weight
+  private int _sequenceLength;
+
+  public CutSpill(String chromosome, File directory) throws IOException {
+    _chromosome = chromosome;
+    _file = File.createTempFile(chromosome + ".", ".cuts", directory);
+    _file.deleteOnExit();
+  }
+
+  public void add(long position, boolean strand, double weight) {
+    if(position < 0 || position > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Cut position " + position + " is outside the supported chromosome range.");
+    float w = (float)weight;
+    if(_reads == 0)
+      _common = w;
+    else if(w != _common)
+      _weighted = true;
+    ++_reads;
+    _totalWeight += w;
+    _firstPos = Math.min(_firstPos, position);
+    _lastPos = Math.max(_lastPos, position);
+    if(!_buffer.hasRemaining())
+      flush();
+    _buffer.putInt(strand ? (int)position : ~(int)position);
+    _buffer.putFloat(w);
+  }
+
+  public int size() {
+    return (int)Math.min(_reads, Integer.MAX_VALUE);
+  }
+
+  /*
+   * Writes out the last buffered cuts. Every read of the input has been added.
+   */
+  public void finish(int sequenceLength) {
+    flush();
+    _buffer = null;
+    _sequenceLength = sequenceLength;
+  }
+
+  private void flush() {
+    if(_buffer.position() == 0)
+      return;
+    try {
+      OutputStream out = new FileOutputStream(_file, true);
+      try {
+        out.write(_buffer.array(), 0, _buffer.position());
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    _buffer.clear();
+  }
+
+  /*
+   * Reads the cuts back into memory. Every call builds a new chromosome.
+   */
+  public KDEChromosome load() throws IOException {
+    KDEChromosome.CutBuffer cuts = new KDEChromosome.CutBuffer();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file), 1 << 16));
+    try {
+      for(long i = 0; i < _reads; ++i){
+        int p = in.readInt();
+        float w = in.readFloat();
+        cuts.add(p >= 0 ? p : ~p, p >= 0, w);
+      }
+    } catch (EOFException e) {
+      throw new IOException("Cut file " + _file.getPath() + " of " + _chromosome + " is truncated.");
+    } finally {
+      in.close();
+    }
+    return cuts.build(_chromosome, _sequenceLength);
+  }
+
+  public void delete() {
+    _file.delete();
+  }
+
+  public String getChromosome() {
+    return _chromosome;
+  }
+
+  public long getReadCount() {
+    return _reads;
+  }
+
+  public double getTotalWeight() {
+    return _totalWeight;
+  }
+
+  public long getFirstPos() {
+    return _firstPos;
+  }
+
+  public long getLastPos() {
+    return _lastPos;
+  }
+
+  public int getSequenceLength() {
+    return _sequenceLength;
+  }
+
+  /*
+   * Heap bytes to load and run the chromosome, counting every read as a cut of its own. Loading
+   * holds the read arrays and their sort keys next to the built chromosome.
+   */
+  public long estimateHeapCost(File[] bgfile, File[] ipfile, boolean chip) {
+    long loading = _reads * 16 + _reads / 8;
+    long cutBytes = _reads * (_weighted ? 16 : 8) + _reads / 8;
+    return loading + KDEChromosome.estimateHeapCost(_chromosome, _reads, cutBytes, _weighted, !_weighted, bgfile, ipfile, chip);
+  }
+}
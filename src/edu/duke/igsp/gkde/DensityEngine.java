@@ -0,0 +1,42 @@
+/*****************************************************************************
+  DensityEngine.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+package edu.duke.igsp.gkde;
+
+/**
+ * Computes the density of one chromosome for a run of bases. Instances are
+ * bound to a chromosome, its settings and its background/ploidy tracks, and
+ * may be called for different tiles from several threads at once.
+ */
+interface DensityEngine {
+  /*
+   * Fills density[0..len) with the values for bases from..from+len, counted
+   * from the first cut of the chromosome.
+   */
+  public void compute(int from, int len, float[] density);
+
+  /*
+   * Fills density[0..count) with the values for bases from, from+step, ..., from+(count-1)*step
+   * only, for writers that keep every step-th base.
+   */
+  public void computeSampled(int from, int step, int count, float[] density);
+}
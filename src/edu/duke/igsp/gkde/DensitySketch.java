@@ -0,0 +1,110 @@
+/*****************************************************************************
+  DensitySketch.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+package edu.duke.igsp.gkde;
+
+/**
+ * Quantiles of a stream of density values to within a relative error of
+ * ACCURACY, in memory that grows with the logarithm of their range only.
+ *
+ * A positive value x is counted in bin ceil(log(x / MIN) / log(GAMMA)),
+ * which holds the values in (MIN * GAMMA^(i-1), MIN * GAMMA^i], and values
+ * at or below MIN are counted as zero. A quantile is reported as the middle
+ * of its bin. Sketches of separate streams merge by adding their counts,
+ * so merging is exact and does not depend on the order.
+ */
+class DensitySketch {
+
+  static final double ACCURACY = 0.001;
+  private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+  private static final double LOG_GAMMA = Math.log(GAMMA);
+  private static final double MIN = 1e-9;
+  private static final int SLACK = 256;  // spare bins on each side when a value falls outside
+
+  private long[] _counts = new long[0];
+  private int _offset = 0;  // bin of _counts[0]
+  private long _zeros = 0;
+  private long _total = 0;
+
+  void add(float[] batch, int start, int length){
+    int end = start + length;
+    for(int i = start; i < end; ++i){
+      float x = batch[i];
+      if(x <= MIN){
+        ++_zeros;
+      }else{
+        int bin = (int)Math.ceil(Math.log(x / MIN) / LOG_GAMMA);
+        if(bin < _offset || bin >= _offset + _counts.length)
+          grow(bin - SLACK, bin + SLACK);
+        ++_counts[bin - _offset];
+      }
+    }
+    _total += length;
+  }
+
+  void merge(DensitySketch other){
+    if(other._counts.length > 0){
+      grow(other._offset, other._offset + other._counts.length - 1);
+      for(int i = 0; i < other._counts.length; ++i)
+        _counts[other._offset + i - _offset] += other._counts[i];
+    }
+    _zeros += other._zeros;
+    _total += other._total;
+  }
+
+  long count(){
+    return _total;
+  }
+
+  /*
+   * The smallest value with at least a fraction q of all values at or below it, 0 for an empty sketch.
+   */
+  float quantile(double q){
+    long rank = Math.max(1, (long)Math.ceil(q * _total));
+    if(rank <= _zeros)
+      return 0f;
+    long below = _zeros;
+    for(int i = 0; i < _counts.length; ++i){
+      below += _counts[i];
+      if(below >= rank)
+        return (float)(MIN * 2 * Math.pow(GAMMA, _offset + i) / (GAMMA + 1));
+    }
+    return 0f;
+  }
+
+  /*
+   * Widens the bins to cover [lo, hi] as well.
+   */
+  private void grow(int lo, int hi){
+    if(_counts.length > 0){
+      lo = Math.min(lo, _offset);
+      hi = Math.max(hi, _offset + _counts.length - 1);
+      if(lo == _offset && hi == _offset + _counts.length - 1)
+        return;
+    }
+    long[] counts = new long[hi - lo + 1];
+    if(_counts.length > 0)
+      System.arraycopy(_counts, 0, counts, _offset - lo, _counts.length);
+    _counts = counts;
+    _offset = lo;
+  }
+}
@@ -0,0 +1,139 @@
+/*****************************************************************************
+  DensitySpool.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+package edu.duke.igsp.gkde;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.duke.igsp.gkde.format.DensityWriter;
+
+/**
+ * Keeps the density of every base of a chromosome in a temporary file and
+ * a quantile sketch of it, for a threshold taken from the observed density
+ * of the whole genome. The threshold is only known once every chromosome is
+ * spooled, so the density is handed to the real writers by replay().
+ *
+ * The values are stored as raw floats, four bytes a base, next to the
+ * output they belong to, and the file is only open while it is written
+ * or replayed.
+ */
+class DensitySpool implements DensityWriter {
+
+  final DensitySketch sketch = new DensitySketch();
+
+  private final File _file;
+  private RandomAccessFile _raf;
+  private FileChannel _channel;
+  private final ByteBuffer _buffer = ByteBuffer.allocate(4 * KDEChromosome.BATCH_SIZE);
+
+  DensitySpool(File directory, String chromosome) throws IOException {
+    _file = File.createTempFile(chromosome + ".", ".density", directory);
+    _file.deleteOnExit();
+    _raf = new RandomAccessFile(_file, "rw");
+    _channel = _raf.getChannel();
+  }
+
+  public void writeDensity(float[] batch, int start, int length) throws IOException {
+    sketch.add(batch, start, length);
+    for(int i = start; i < start + length; i += KDEChromosome.BATCH_SIZE){
+      int n = Math.min(KDEChromosome.BATCH_SIZE, start + length - i);
+      _buffer.clear();
+      _buffer.asFloatBuffer().put(batch, i, n);
+      _buffer.limit(4 * n);
+      while(_buffer.hasRemaining())
+        _channel.write(_buffer);
+    }
+  }
+
+  /*
+   * Hands the spooled density to every writer in batches, then closes them and deletes the spool.
+   * Returns the number of peaks each writer's threshold gives.
+   */
+  int[] replay(DensityWriter[] dws, float[] thresholds) throws IOException {
+    int[] peaks = new int[dws.length];
+    boolean[] aboveThreshold = new boolean[dws.length];
+    float[] batch = new float[KDEChromosome.BATCH_SIZE];
+    _raf = new RandomAccessFile(_file, "r");
+    _channel = _raf.getChannel();
+    try {
+      while(true){
+        _buffer.clear();
+        while(_buffer.hasRemaining() && _channel.read(_buffer) >= 0)
+          ;
+        int n = _buffer.position() / 4;
+        if(n == 0)
+          break;
+        _buffer.flip();
+        _buffer.asFloatBuffer().get(batch, 0, n);
+        for(int k = 0; k < dws.length; ++k){
+          for(int j = 0; j < n; ++j){
+            if(!aboveThreshold[k] && batch[j] > thresholds[k]){
+              aboveThreshold[k] = true;
+              ++peaks[k];
+            }else if(aboveThreshold[k] && batch[j] < thresholds[k]){
+              aboveThreshold[k] = false;
+            }
+          }
+          dws[k].writeDensity(batch, 0, n);
+        }
+      }
+    } finally {
+      _raf.close();
+      _file.delete();
+    }
+    for(int k = 0; k < dws.length; ++k)
+      dws[k].close();
+    return peaks;
+  }
+
+  /*
+   * Closes the file until replay(), so that spooled chromosomes do not hold a file each.
+   */
+  public void close() throws IOException {
+    _raf.close();
+  }
+
+  /*
+   * The threshold is not known while the density is spooled.
+   */
+  public void setThreshold(float threshold) {
+  }
+
+  public int getStep() {
+    return 1;
+  }
+
+  public int getFirstSample() {
+    return 0;
+  }
+
+  /*
+   * Every value goes into the sketch, so none may be skipped.
+   */
+  public boolean isThresholded() {
+    return false;
+  }
+}
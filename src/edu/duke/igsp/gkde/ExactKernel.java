@@ -0,0 +1,544 @@
+/*****************************************************************************
+  ExactKernel.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+
+package edu.duke.igsp.gkde;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import edu.duke.igsp.gkde.KDEChromosome.ExperimentType;
+import edu.duke.igsp.gkde.KDEChromosome.Settings;
+import edu.duke.igsp.gkde.background.WigChromosome;
+
+/**
+ * The exact density sum, specialized for ChIP and for the other experiment
+ * types. create() picks the implementation once per chromosome run and each
+ * one carries its own base loop, so the loop the JIT compiles has no mode
+ * checks and a single, inlinable kernel.
+ *
+ * Background and ploidy tracks do not need their own kernels: before the
+ * base loop every cut's track factors are folded into its weight and cuts
+ * with a zero factor are dropped, so corrected runs sum the same way as
+ * uncorrected ones.
+ *
+ * Without tracks, reads of equal weight need no weight array at all: the
+ * cuts carry integer read counts (or nothing, one read each) and the
+ * common read weight multiplies each finished sum once. Every kernel picks
+ * its weighted, counted or unit loop before it runs over the cuts, so no
+ * cut pays for the test. The gather sums never convert a count inside the
+ * loop: on x86 an int to double conversion waits on the previous value of
+ * its register, which chains the sum. The plain kernel widens the counts
+ * once per tile and the ChIP strand copies hold them as doubles.
+ */
+abstract class ExactKernel implements DensityEngine {
+
+  final int[] pos;
+  final BitSet strands;
+  final double[] weights;  // null when every read has the same weight
+  final int[] counts;      // reads per cut when weights is null, null for one read per cut
+  final double scale;      // the weight of one read when weights is null, else 1
+  final long firstCut;
+  final Settings settings;
+  final double[] precompute;
+  final long window;
+  final int offset;
+  final double bandwidth;
+
+  ExactKernel(int[] pos, BitSet strands, double[] weights, int[] counts, double scale, long firstCut, Settings settings){
+    this.pos = pos;
+    this.strands = strands;
+    this.weights = weights;
+    this.counts = counts;
+    this.scale = scale;
+    this.firstCut = firstCut;
+    this.settings = settings;
+    precompute = settings.precompute;
+    window = settings.window;
+    offset = settings.offset;
+    bandwidth = (double)settings.bandwidth;
+  }
+
+  static ExactKernel create(KDEChromosome chr, Settings settings, WigChromosome bgdata, WigChromosome ipdata){
+    int[] p;
+    BitSet s;
+    double[] w;
+    int[] c = null;
+    double scale = 1.0;
+    if(bgdata == null && ipdata == null){
+      p = chr.positions();
+      s = chr.strands();
+      w = chr.weights();
+      c = w == null ? chr.counts() : null;
+      scale = chr.unitWeight();
+    }else{
+      int n = (int)chr.getLength();
+      p = new int[n];
+      s = new BitSet(n);
+      w = new double[n];
+      int m = 0;
+      for(int i = 0; i < n; ++i){
+        double factor = chr.trackFactor(i, bgdata, ipdata);
+        if(factor == 0.0)
+          continue;
+        p[m] = (int)chr.getPosition(i);
+        if(chr.getStrand(i))
+          s.set(m);
+        w[m] = factor * chr.getWeight(i);
+        ++m;
+      }
+      if(m < n){
+        p = Arrays.copyOf(p, m);
+        w = Arrays.copyOf(w, m);
+      }
+    }
+    return create(p, s, w, c, scale, chr.getFirstPos(), settings, settings.engine == KDEChromosome.Engine.SCATTER);
+  }
+
+  private static ExactKernel create(int[] p, BitSet s, double[] w, int[] c, double scale, long firstCut, Settings settings, boolean scatter){
+    boolean chip = settings.experimentType == ExperimentType.CHIP;
+    if(!scatter && settings.kernel == KDEChromosome.Kernel.BOX)
+      return chip ? new ChipBoxKernel(p, s, w, c, scale, firstCut, settings) : new BoxKernel(p, s, w, c, scale, firstCut, settings);
+    if(scatter)
+      return chip ? new ChipScatterKernel(p, s, w, c, scale, firstCut, settings) : new ScatterKernel(p, s, w, c, scale, firstCut, settings);
+    return chip ? new ChipKernel(p, s, w, c, scale, firstCut, settings) : new PlainKernel(p, s, w, c, scale, firstCut, settings);
+  }
+
+  /*
+   * The gather or the scatter form of this kernel, over the same prepared cuts.
+   */
+  ExactKernel withScatter(boolean scatter){
+    if(scatter == (this instanceof Scatter))
+      return this;
+    // the box kernels are the gather form
+    return create(pos, strands, weights, counts, scale, firstCut, settings, scatter);
+  }
+
+  /*
+   * Number of prepared cuts that can reach the bases tileStart..tileStart+len.
+   */
+  int cutsInReach(long tileStart, int len){
+    return lowerBound(tileStart + len + window) - lowerBound(tileStart - window);
+  }
+
+  /*
+   * Heap bytes create() allocates on top of the chromosome's own arrays. The ChIP gather kernel
+   * adds a shifted copy of the positions and of the weights or counts, both as doubles.
+   */
+  static long preparedBytes(long ncuts, boolean tracks, boolean weighted, boolean counted, boolean chip){
+    long bytes = 0;
+    if(tracks)
+      bytes = ncuts * 12 + ncuts / 8;
+    if(chip)
+      bytes += ncuts * 4 + (tracks || weighted || counted ? ncuts * 8 : 0);
+    return bytes;
+  }
+
+  public void compute(int from, int len, float[] density){
+    computeSampled(from, 1, len, density);
+  }
+
+  public void computeSampled(int from, int step, int count, float[] density){
+    long tileStart = from + firstCut;
+    long tileEnd = tileStart + (long)(count - 1) * step + 1;
+    int lo = lowerBound(tileStart - window);
+    int hi = lowerBound(tileEnd + window);
+    // the serial loop has always advanced past the cuts before the previous base
+    int cutIdx = lowerBound(tileStart - 1);
+    fill(tileStart, step, count, density, cutIdx, lo, hi);
+  }
+
+  /*
+   * Fills density[0..count) for the bases tileStart, tileStart+step, ... . cutIdx is the first
+   * cut at or after tileStart - 1, and lo..hi the cuts within the window of those bases.
+   */
+  abstract void fill(long tileStart, int step, int count, float[] density, int cutIdx, int lo, int hi);
+
+  /*
+   * Index of the first cut at or after p.
+   */
+  private int lowerBound(long p){
+    int lo = 0;
+    int hi = pos.length;
+    while(lo < hi){
+      int mid = (lo + hi) >>> 1;
+      if(pos[mid] < p)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  static final class PlainKernel extends ExactKernel {
+    PlainKernel(int[] pos, BitSet strands, double[] weights, int[] counts, double scale, long firstCut, Settings settings){
+      super(pos, strands, weights, counts, scale, firstCut, settings);
+    }
+
+    void fill(long tileStart, int step, int count, float[] density, int cutIdx, int lo, int hi){
+      // w[i - base] is the weight of cut i, or null for one read per cut
+      double[] w = weights;
+      int base = 0;
+      if(w == null && counts != null){
+        w = new double[hi - lo];
+        for(int i = lo; i < hi; ++i)
+          w[i - lo] = counts[i];
+        base = lo;
+      }
+      for(int j = 0; j < count; ++j){
+        long chromPos = tileStart + (long)j * step;
+        density[j] = density(chromPos, cutIdx, lo, hi, w, base);
+        while(cutIdx < hi && chromPos + step - 1 > pos[cutIdx])
+          ++cutIdx;
+      }
+    }
+
+    // DNase, FAIRE and ATAC
+    private float density(long chromPos, int cutIdx, int lo, int hi, double[] w, int base){
+      long minPos = chromPos - window;
+      long maxPos = chromPos + window;
+      double sum = 0.0;
+      if(w != null){
+        for(int i = cutIdx-1; i >= lo; --i){
+          if (pos[i] < minPos) break;
+          sum += precompute[Math.abs((int)(pos[i] - chromPos))] * w[i - base];
+        }
+        for(int i = cutIdx; i < hi; ++i){
+          if (pos[i] > maxPos) break;
+          sum += precompute[Math.abs((int)(pos[i] - chromPos))] * w[i - base];
+        }
+      }else{
+        for(int i = cutIdx-1; i >= lo; --i){
+          if (pos[i] < minPos) break;
+          sum += precompute[Math.abs((int)(pos[i] - chromPos))];
+        }
+        for(int i = cutIdx; i < hi; ++i){
+          if (pos[i] > maxPos) break;
+          sum += precompute[Math.abs((int)(pos[i] - chromPos))];
+        }
+      }
+      return (float)(sum * scale / bandwidth);
+    }
+  }
+
+  /*
+   * ChIP. A '+' cut at p reaches the bases p..p+window with its kernel centred on p+offset, a '-'
+   * cut the bases p-window..p centred on p-offset. The cuts of each strand are kept apart with
+   * their centres already shifted, so the cuts that reach a base form one run of each array and
+   * the sums need no strand or direction test.
+   */
+  static final class ChipKernel extends ExactKernel {
+    final Shifted plus, minus;
+
+    ChipKernel(int[] pos, BitSet strands, double[] weights, int[] counts, double scale, long firstCut, Settings settings){
+      super(pos, strands, weights, counts, scale, firstCut, settings);
+      int np = strands.cardinality();
+      plus = new Shifted(this, np, true, offset);
+      minus = new Shifted(this, pos.length - np, false, -offset);
+    }
+
+    void fill(long tileStart, int step, int count, float[] density, int cutIdx, int lo, int hi){
+      // '+' centres in [x - window + offset, x + offset], '-' centres in [x - offset, x + window - offset]
+      int pa = plus.lowerBound(tileStart - window + offset), pb = plus.lowerBound(tileStart + offset + 1);
+      int ma = minus.lowerBound(tileStart - offset), mb = minus.lowerBound(tileStart + window - offset + 1);
+      for(int j = 0; j < count; ++j){
+        long chromPos = tileStart + (long)j * step;
+        for(; pb < plus.pos.length && plus.pos[pb] <= chromPos + offset; ++pb);
+        for(; pa < pb && plus.pos[pa] < chromPos - window + offset; ++pa);
+        for(; mb < minus.pos.length && minus.pos[mb] <= chromPos + window - offset; ++mb);
+        for(; ma < mb && minus.pos[ma] < chromPos - offset; ++ma);
+        double sum = plus.sum(precompute, chromPos, pa, pb) + minus.sum(precompute, chromPos, ma, mb);
+        density[j] = (float)(sum * scale / bandwidth);
+      }
+    }
+  }
+
+  /*
+   * The kernel centres of the cuts on one strand, with the kernel's read weights or read counts
+   * as doubles, or neither.
+   */
+  static final class Shifted {
+    final int[] pos;
+    final double[] weights;
+
+    Shifted(ExactKernel k, int n, boolean strand, int shift){
+      pos = new int[n];
+      weights = k.weights == null && k.counts == null ? null : new double[n];
+      int m = 0;
+      for(int i = 0; i < k.pos.length; ++i){
+        if(k.strands.get(i) != strand)
+          continue;
+        pos[m] = k.pos[i] + shift;
+        if(weights != null)
+          weights[m] = k.weights != null ? k.weights[i] : k.counts[i];
+        ++m;
+      }
+    }
+
+    /*
+     * Index of the first centre at or after p.
+     */
+    int lowerBound(long p){
+      int lo = 0;
+      int hi = pos.length;
+      while(lo < hi){
+        int mid = (lo + hi) >>> 1;
+        if(pos[mid] < p)
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+      return lo;
+    }
+
+    /*
+     * The kernel sum of the centres a..b-1 at chromPos.
+     */
+    double sum(double[] precompute, long chromPos, int a, int b){
+      double sum = 0.0;
+      if(weights != null){
+        for(int i = a; i < b; ++i)
+          sum += precompute[Math.abs((int)(pos[i] - chromPos))] * weights[i];
+      }else{
+        for(int i = a; i < b; ++i)
+          sum += precompute[Math.abs((int)(pos[i] - chromPos))];
+      }
+      return sum;
+    }
+  }
+
+  /*
+   * The cut-major form of the sum: every cut in reach of the tile adds its kernel into an
+   * accumulator for the bases it covers. Bases no cut reaches are never visited, and a tile
+   * without cuts is a plain zero fill.
+   */
+  static abstract class Scatter extends ExactKernel {
+    // mirror[window + t] is the kernel t bases from its centre
+    final double[] mirror;
+
+    Scatter(int[] pos, BitSet strands, double[] weights, int[] counts, double scale, long firstCut, Settings settings){
+      super(pos, strands, weights, counts, scale, firstCut, settings);
+      int w = (int)window;
+      mirror = new double[2 * w + 1];
+      for(int t = -w; t <= w; ++t)
+        mirror[w + t] = precompute[Math.abs(t)];
+    }
+
+    void fill(long tileStart, int step, int count, float[] density, int cutIdx, int lo, int hi){
+      if(lo == hi){
+        Arrays.fill(density, 0, count, 0.0f);
+        return;
+      }
+      double[] acc = new double[count];
+      if(weights != null){
+        for(int i = lo; i < hi; ++i)
+          scatter(i, weights[i], tileStart, step, count, acc);
+      }else if(counts != null){
+        for(int i = lo; i < hi; ++i)
+          scatter(i, counts[i], tileStart, step, count, acc);
+      }else{
+        for(int i = lo; i < hi; ++i)
+          scatter(i, 1.0, tileStart, step, count, acc);
+      }
+      for(int j = 0; j < count; ++j)
+        density[j] = (float)(acc[j] * scale / bandwidth);
+    }
+
+    /*
+     * Adds the kernel of cut i, times w, to acc[j] for the bases x = tileStart + j*step it covers.
+     */
+    abstract void scatter(int i, double w, long tileStart, int step, int count, double[] acc);
+
+    /*
+     * Adds precompute[|x - center|] * w for the bases x in [from, to] of the tile. The kernel
+     * values are a run of the mirrored kernel, contiguous at step 1 and so a single vector add.
+     */
+    final void add(long center, long from, long to, double w, long tileStart, int step, int count, double[] acc){
+      if(to < tileStart)
+        return;
+      int a = from <= tileStart ? 0 : (int)((from - tileStart + step - 1) / step);
+      int b = (int)Math.min((to - tileStart) / step, count - 1);
+      if(a > b)
+        return;
+      int k = (int)(tileStart + (long)a * step - center + window);
+      if(step == 1){
+        KernelAdd.INSTANCE.add(acc, a, mirror, k, b - a + 1, w);
+        return;
+      }
+      for(int j = a; j <= b; ++j, k += step)
+        acc[j] += mirror[k] * w;
+    }
+  }
+
+  // DNase, FAIRE and ATAC
+  static final class ScatterKernel extends Scatter {
+    ScatterKernel(int[] pos, BitSet strands, double[] weights, int[] counts, double scale, long firstCut, Settings settings){
+      super(pos, strands, weights, counts, scale, firstCut, settings);
+    }
+
+    void scatter(int i, double w, long tileStart, int step, int count, double[] acc){
+      long p = pos[i];
+      add(p, p - window, p + window, w, tileStart, step, count, acc);
+    }
+  }
+
+  // ChIP: a '+' cut reaches the bases after it, a '-' cut the bases before it
+  static final class ChipScatterKernel extends Scatter {
+    ChipScatterKernel(int[] pos, BitSet strands, double[] weights, int[] counts, double scale, long firstCut, Settings settings){
+      super(pos, strands, weights, counts, scale, firstCut, settings);
+    }
+
+    void scatter(int i, double w, long tileStart, int step, int count, double[] acc){
+      long p = pos[i];
+      if(strands.get(i))
+        add(p + offset, p, p + window, w, tileStart, step, count, acc);
+      else
+        add(p - offset, p - window, p, w, tileStart, step, count, acc);
+    }
+  }
+
+  // Box kernel: every cut in the window weighs precompute[0], so the sum is a sliding window total
+  static final class BoxKernel extends ExactKernel {
+    BoxKernel(int[] pos, BitSet strands, double[] weights, int[] counts, double scale, long firstCut, Settings settings){
+      super(pos, strands, weights, counts, scale, firstCut, settings);
+    }
+
+    void fill(long tileStart, int step, int count, float[] density, int cutIdx, int lo, int hi){
+      // cuts a..b-1 are the ones within the window of the current base
+      int a = lo, b = lo;
+      if(weights != null){
+        double sum = 0.0;
+        for(int j = 0; j < count; ++j){
+          long chromPos = tileStart + (long)j * step;
+          for(; b < hi && pos[b] <= chromPos + window; ++b)
+            sum += weights[b];
+          for(; a < b && pos[a] < chromPos - window; ++a)
+            sum -= weights[a];
+          if(a == b)
+            sum = 0.0;
+          density[j] = (float)(precompute[0] * sum * scale / bandwidth);
+        }
+      }else if(counts != null){
+        // read counts add up exactly, so the running total needs no reset
+        double sum = 0.0;
+        for(int j = 0; j < count; ++j){
+          long chromPos = tileStart + (long)j * step;
+          for(; b < hi && pos[b] <= chromPos + window; ++b)
+            sum += counts[b];
+          for(; a < b && pos[a] < chromPos - window; ++a)
+            sum -= counts[a];
+          density[j] = (float)(precompute[0] * sum * scale / bandwidth);
+        }
+      }else{
+        double sum = 0.0;
+        for(int j = 0; j < count; ++j){
+          long chromPos = tileStart + (long)j * step;
+          for(; b < hi && pos[b] <= chromPos + window; ++b)
+            sum += 1.0;
+          for(; a < b && pos[a] < chromPos - window; ++a)
+            sum -= 1.0;
+          density[j] = (float)(precompute[0] * sum * scale / bandwidth);
+        }
+      }
+    }
+  }
+
+  // Box kernel for ChIP: '+' cuts count in the window before the base, '-' cuts in the one after it
+  static final class ChipBoxKernel extends ExactKernel {
+    ChipBoxKernel(int[] pos, BitSet strands, double[] weights, int[] counts, double scale, long firstCut, Settings settings){
+      super(pos, strands, weights, counts, scale, firstCut, settings);
+    }
+
+    void fill(long tileStart, int step, int count, float[] density, int cutIdx, int lo, int hi){
+      if(weights != null){
+        int pa = lo, pb = lo, ma = lo, mb = lo;
+        double plus = 0.0, minus = 0.0;
+        for(int j = 0; j < count; ++j){
+          long chromPos = tileStart + (long)j * step;
+          for(; pb < hi && pos[pb] <= chromPos; ++pb)
+            if(strands.get(pb))
+              plus += weights[pb];
+          for(; pa < pb && pos[pa] < chromPos - window; ++pa)
+            if(strands.get(pa))
+              plus -= weights[pa];
+          for(; mb < hi && pos[mb] <= chromPos + window; ++mb)
+            if(!strands.get(mb))
+              minus += weights[mb];
+          for(; ma < mb && pos[ma] < chromPos; ++ma)
+            if(!strands.get(ma))
+              minus -= weights[ma];
+          if(pa == pb)
+            plus = 0.0;
+          if(ma == mb)
+            minus = 0.0;
+          density[j] = (float)(precompute[0] * (plus + minus) * scale / bandwidth);
+        }
+      }else{
+        fillCounted(tileStart, step, count, density, lo, hi);
+      }
+    }
+
+    /*
+     * As fill() for read counts, or one read per cut when counts is null. The totals are exact
+     * integers, so they need no reset when a window empties.
+     */
+    private void fillCounted(long tileStart, int step, int count, float[] density, int lo, int hi){
+      int pa = lo, pb = lo, ma = lo, mb = lo;
+      double plus = 0.0, minus = 0.0;
+      if(counts != null){
+        for(int j = 0; j < count; ++j){
+          long chromPos = tileStart + (long)j * step;
+          for(; pb < hi && pos[pb] <= chromPos; ++pb)
+            if(strands.get(pb))
+              plus += counts[pb];
+          for(; pa < pb && pos[pa] < chromPos - window; ++pa)
+            if(strands.get(pa))
+              plus -= counts[pa];
+          for(; mb < hi && pos[mb] <= chromPos + window; ++mb)
+            if(!strands.get(mb))
+              minus += counts[mb];
+          for(; ma < mb && pos[ma] < chromPos; ++ma)
+            if(!strands.get(ma))
+              minus -= counts[ma];
+          density[j] = (float)(precompute[0] * (plus + minus) * scale / bandwidth);
+        }
+      }else{
+        for(int j = 0; j < count; ++j){
+          long chromPos = tileStart + (long)j * step;
+          for(; pb < hi && pos[pb] <= chromPos; ++pb)
+            if(strands.get(pb))
+              plus += 1.0;
+          for(; pa < pb && pos[pa] < chromPos - window; ++pa)
+            if(strands.get(pa))
+              plus -= 1.0;
+          for(; mb < hi && pos[mb] <= chromPos + window; ++mb)
+            if(!strands.get(mb))
+              minus += 1.0;
+          for(; ma < mb && pos[ma] < chromPos; ++ma)
+            if(!strands.get(ma))
+              minus -= 1.0;
+          density[j] = (float)(precompute[0] * (plus + minus) * scale / bandwidth);
+        }
+      }
+    }
+  }
+}
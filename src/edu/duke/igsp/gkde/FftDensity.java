@@ -0,0 +1,202 @@
+/*****************************************************************************
+  FftDensity.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+
+package edu.duke.igsp.gkde;
+
+import edu.duke.igsp.gkde.KDEChromosome.Settings;
+import edu.duke.igsp.gkde.background.WigChromosome;
+
+/**
+ * Density engine that bins the weighted cuts of a tile per base and convolves
+ * the histogram with the precomputed kernel by overlap-save FFT. The cost per
+ * base depends on the window only, not on the number of cuts.
+ *
+ * The values are the same normalized densities the exact engine produces, up
+ * to the rounding of the transforms: the absolute error of a base is below
+ * 1e-9 times the largest density in its block, so after rounding to float
+ * a value differs from the exact one by at most a few ulps, and values the
+ * exact engine reports as 0 may come out as tiny positive numbers.
+ */
+class FftDensity extends ContiguousDensity {
+
+  private final KDEChromosome _chr;
+  private final WigChromosome _bgdata;
+  private final WigChromosome _ipdata;
+  private final int _window;
+  private final double _bandwidth;
+  private final int _n;
+  private final int _m;
+  private final double[] _cos;
+  private final double[] _sin;
+  private final double[] _plusRe;
+  private final double[] _plusIm;
+  private final double[] _minusRe;
+  private final double[] _minusIm;
+
+  FftDensity(KDEChromosome chr, Settings settings, WigChromosome bgdata, WigChromosome ipdata){
+    _chr = chr;
+    _bgdata = bgdata;
+    _ipdata = ipdata;
+    _window = (int)settings.window;
+    _bandwidth = (double)settings.bandwidth;
+    _m = 2 * _window + 1;
+
+    int n = blockSize(_window);
+    _n = n;
+
+    _cos = new double[n / 2];
+    _sin = new double[n / 2];
+    for(int i = 0; i < n / 2; ++i){
+      _cos[i] = Math.cos(2 * Math.PI * i / n);
+      _sin[i] = Math.sin(2 * Math.PI * i / n);
+    }
+
+    // kernel[j] weighs a cut j - window bases before the current base
+    _plusRe = new double[n];
+    _plusIm = new double[n];
+    _minusRe = new double[n];
+    _minusIm = new double[n];
+    boolean chip = settings.experimentType == KDEChromosome.ExperimentType.CHIP;
+    double[] precompute = settings.precompute;
+    for(int j = 0; j < _m; ++j){
+      int t = j - _window;
+      if(!chip){
+        _plusRe[j] = precompute[Math.abs(t)];
+        _minusRe[j] = _plusRe[j];
+      }else{
+        int plus = Math.abs(settings.offset - t);
+        int minus = Math.abs(t + settings.offset);
+        if(t >= 0 && plus < precompute.length)
+          _plusRe[j] = precompute[plus];
+        if(t <= 0 && minus < precompute.length)
+          _minusRe[j] = precompute[minus];
+      }
+    }
+    transform(_plusRe, _plusIm, false);
+    transform(_minusRe, _minusIm, false);
+  }
+
+  public void compute(int from, int len, float[] density){
+    long base = _chr.getFirstPos() + from - _window;
+    int histLen = len + 2 * _window;
+    double[] plus = new double[histLen];
+    double[] minus = new double[histLen];
+    boolean tracks = _bgdata != null || _ipdata != null;
+
+    int lo = _chr.lowerBound(base);
+    int hi = _chr.lowerBound(base + histLen);
+    for(int i = lo; i < hi; ++i){
+      double w = _chr.getWeight(i);
+      if(tracks)
+        w *= _chr.trackFactor(i, _bgdata, _ipdata);
+      int idx = (int)(_chr.getPosition(i) - base);
+      if(_chr.getStrand(i))
+        plus[idx] += w;
+      else
+        minus[idx] += w;
+    }
+
+    // both strands go through one complex transform: plus as the real part, minus as the imaginary part
+    int n = _n;
+    int valid = n - _m + 1;
+    double[] re = new double[n];
+    double[] im = new double[n];
+    for(int s = 0; s < len; s += valid){
+      for(int k = 0; k < n; ++k){
+        int h = s + k;
+        re[k] = h < histLen ? plus[h] : 0.0;
+        im[k] = h < histLen ? minus[h] : 0.0;
+      }
+      transform(re, im, false);
+      for(int k = 0; k <= n / 2; ++k){
+        int r = (n - k) & (n - 1);
+        double zr = re[k], zi = im[k], cr = re[r], ci = im[r];
+        // split into the spectra of the two real inputs and apply each strand's kernel
+        double ar = (zr + cr) / 2, ai = (zi - ci) / 2;
+        double br = (zi + ci) / 2, bi = (cr - zr) / 2;
+        double yr = ar * _plusRe[k] - ai * _plusIm[k] + br * _minusRe[k] - bi * _minusIm[k];
+        double yi = ar * _plusIm[k] + ai * _plusRe[k] + br * _minusIm[k] + bi * _minusRe[k];
+        re[k] = yr;
+        im[k] = yi;
+        if(r != k){
+          re[r] = yr;
+          im[r] = -yi;
+        }
+      }
+      transform(re, im, true);
+      for(int k = _m - 1; k < n; ++k){
+        int i = s + k - (_m - 1);
+        if(i >= len)
+          break;
+        double v = re[k] / n;
+        density[i] = v > 0 ? (float)(v / _bandwidth) : 0.0f;
+      }
+    }
+  }
+
+  /*
+   * Transform length for a window: at least three quarters of every block are valid output.
+   */
+  static int blockSize(int window){
+    int n = 1024;
+    while(n < 4 * (2 * window + 1))
+      n <<= 1;
+    return n;
+  }
+
+  /*
+   * In-place iterative radix-2 FFT; the inverse is left unscaled.
+   */
+  private void transform(double[] re, double[] im, boolean inverse){
+    int n = re.length;
+    for(int i = 1, j = 0; i < n; ++i){
+      int bit = n >> 1;
+      for(; (j & bit) != 0; bit >>= 1)
+        j ^= bit;
+      j ^= bit;
+      if(i < j){
+        double t = re[i]; re[i] = re[j]; re[j] = t;
+        t = im[i]; im[i] = im[j]; im[j] = t;
+      }
+    }
+    double sign = inverse ? 1.0 : -1.0;
+    for(int len = 2; len <= n; len <<= 1){
+      int half = len >> 1;
+      int step = n / len;
+      for(int i = 0; i < n; i += len){
+        for(int j = 0; j < half; ++j){
+          double wr = _cos[j * step];
+          double wi = sign * _sin[j * step];
+          int a = i + j;
+          int b = a + half;
+          double xr = re[b] * wr - im[b] * wi;
+          double xi = re[b] * wi + im[b] * wr;
+          re[b] = re[a] - xr;
+          im[b] = im[a] - xi;
+          re[a] += xr;
+          im[a] += xi;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*****************************************************************************
+  FragmentSize.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+package edu.duke.igsp.gkde;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Estimates the fragment size from the distances between plus strand cuts
+ * and the minus strand cuts downstream of them.
+ *
+ * Every plus cut is paired with the minus cuts whose distance lies within
+ * RANGE of PRIOR, and each pair counts with the product of the numbers of
+ * reads merged into the two cuts, so the histogram of distances holds read
+ * pairs whatever the read weights. The estimate is its median. Cuts are sorted by position, so the window of
+ * minus cuts slides forward with the plus cut and each chromosome takes
+ * time linear in its cuts and pairs.
+ *
+ * Chromosomes are histogrammed largest first, BATCH at a time in parallel,
+ * and merged in that order. The estimate stops once it holds at least
+ * MIN_PAIRS pairs and the median did not move over the last batch, so the
+ * result is the same on any number of threads.
+ */
+class FragmentSize {
+
+  static final int PRIOR = 150;
+  static final int RANGE = 500;
+  private static final int BATCH = 4;
+  private static final double MIN_PAIRS = 100000;
+
+  /*
+   * The estimated fragment size, or PRIOR if no cut has a partner on the other strand.
+   */
+  static int estimate(final KDEChromosome[] chrs, ForkJoinPool pool, boolean verbose) throws Exception {
+    long[] sizes = new long[chrs.length];
+    List<Callable<KDEChromosome>> loaders = new ArrayList<Callable<KDEChromosome>>();
+    for(int i = 0; i < chrs.length; ++i){
+      final KDEChromosome chr = chrs[i];
+      sizes[i] = chr.getLength();
+      loaders.add(new Callable<KDEChromosome>(){
+        public KDEChromosome call() {
+          return chr;
+        }
+      });
+    }
+    return estimate(sizes, loaders, pool, verbose);
+  }
+
+  /*
+   * As above, for chromosomes that are not loaded yet. Each is loaded while it is histogrammed,
+   * so at most BATCH of them are in memory at once.
+   */
+  static int estimate(CutSpill[] spills, ForkJoinPool pool, boolean verbose) throws Exception {
+    long[] sizes = new long[spills.length];
+    List<Callable<KDEChromosome>> loaders = new ArrayList<Callable<KDEChromosome>>();
+    for(int i = 0; i < spills.length; ++i){
+      final CutSpill spill = spills[i];
+      sizes[i] = spill.getReadCount();
+      loaders.add(new Callable<KDEChromosome>(){
+        public KDEChromosome call() throws Exception {
+          return spill.load();
+        }
+      });
+    }
+    return estimate(sizes, loaders, pool, verbose);
+  }
+
+  private static int estimate(final long[] sizes, List<Callable<KDEChromosome>> loaders, ForkJoinPool pool, boolean verbose) throws Exception {
+    List<Integer> index = new ArrayList<Integer>();
+    for(int i = 0; i < sizes.length; ++i)
+      index.add(i);
+    Collections.sort(index, new Comparator<Integer>(){
+      public int compare(Integer a, Integer b) {
+        if(sizes[a] > sizes[b])
+          return -1;
+        else if(sizes[a] < sizes[b])
+          return 1;
+        return 0;
+      }
+    });
+    List<Callable<KDEChromosome>> order = new ArrayList<Callable<KDEChromosome>>();
+    for(int i = 0; i < index.size(); ++i)
+      order.add(loaders.get(index.get(i)));
+
+    double[] hist = new double[2 * RANGE - 1];
+    double total = 0;
+    int median = -1, used = 0;
+    while(used < order.size()){
+      int batch = Math.min(BATCH, order.size() - used);
+      double[][] parts = histograms(order.subList(used, used + batch), pool);
+      used += batch;
+      for(int c = 0; c < batch; ++c){
+        for(int d = 0; d < hist.length; ++d){
+          hist[d] += parts[c][d];
+          total += parts[c][d];
+        }
+      }
+      int previous = median;
+      median = median(hist, total);
+      if(total >= MIN_PAIRS && median == previous)
+        break;
+    }
+
+    if(total == 0){
+      System.out.println("Warning: no cut pairs on opposite strands, using a fragment size of " + PRIOR + ".");
+      return PRIOR;
+    }
+    if(verbose)
+      System.out.println("Fragment size from " + used + " of " + order.size() + " chromosomes (" + (long)total + " strand pairs)");
+    return median;
+  }
+
+  private static double[][] histograms(List<Callable<KDEChromosome>> chrs, ForkJoinPool pool) throws Exception {
+    final double[][] parts = new double[chrs.size()][];
+    Future<?>[] pending = new Future<?>[chrs.size()];
+    for(int c = 0; c < chrs.size(); ++c){
+      final Callable<KDEChromosome> chr = chrs.get(c);
+      final int idx = c;
+      Callable<Object> task = new Callable<Object>(){
+        public Object call() throws Exception {
+          parts[idx] = histogram(chr.call());
+          return null;
+        }
+      };
+      if(pool == null)
+        task.call();
+      else
+        pending[c] = pool.submit(task);
+    }
+    if(pool != null){
+      try {
+        for(int c = 0; c < pending.length; ++c)
+          pending[c].get();
+      } catch (ExecutionException e){
+        if(e.getCause() instanceof Exception)
+          throw (Exception)e.getCause();
+        throw e;
+      }
+    }
+    return parts;
+  }
+
+  /*
+   * Read pairs of one chromosome by minus cut position - plus cut position - PRIOR + RANGE - 1.
+   */
+  private static double[] histogram(KDEChromosome chr){
+    double[] hist = new double[2 * RANGE - 1];
+    int n = (int)chr.getLength();
+    int lo = 0, hi = 0;
+    for(int j = 0; j < n; ++j){
+      if(!chr.getStrand(j))
+        continue;
+      long pos = chr.getPosition(j);
+      long from = pos + PRIOR - RANGE + 1;
+      long to = pos + PRIOR + RANGE - 1;
+      while(lo < n && chr.getPosition(lo) < from)
+        ++lo;
+      if(hi < lo)
+        hi = lo;
+      while(hi < n && chr.getPosition(hi) <= to)
+        ++hi;
+      double r = chr.getReads(j);
+      for(int i = lo; i < hi; ++i){
+        if(!chr.getStrand(i))
+          hist[(int)(chr.getPosition(i) - from)] += r * chr.getReads(i);
+      }
+    }
+    return hist;
+  }
+
+  /*
+   * The smallest distance with more than half of the pairs at or below it.
+   */
+  private static int median(double[] hist, double total){
+    double below = 0;
+    for(int d = 0; d < hist.length; ++d){
+      below += hist[d];
+      if(below > total / 2)
+        return d - RANGE + 1 + PRIOR;
+    }
+    return PRIOR;
+  }
+}
@@ -27,12 +27,16 @@
 
 package edu.duke.igsp.gkde;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.io.File;
 
-import com.sun.corba.se.impl.logging.UtilSystemException;
-
 import edu.duke.igsp.gkde.background.BffReader;
 import edu.duke.igsp.gkde.background.IffReader;
 import edu.duke.igsp.gkde.background.WigChromosome;
@@ -42,34 +46,126 @@ import edu.duke.igsp.gkde.format.DensityWriter;
 public class KDEChromosome {
   
   static int BATCH_SIZE = 1024 * 10;
-  
+  static int TILE_SIZE = BATCH_SIZE * 16;
+
   private long _firstCut;
   private long _lastCut;
-  private Sequence[] _cuts;
+  private int[] _positions;
+  private BitSet _strands;   // set for '+' strand cuts
+  private double[] _weights;  // null when every cut carries a count of reads of the same weight
+  private int[] _counts;     // reads merged into each cut, null when there is one per cut
+  private double _unitWeight; // weight of a single read when _weights is null
   private String _chromosome;
   private float _threshold;
   private int _sequenceLength;
   private double _totalWeight;
+  private double _maxBaseWeight;
+  private long _reads;
+  
+  /*
+   * positions must be sorted; weights may be null if every cut has weight 1.0.
+   */
+  public KDEChromosome(String chromosome, int[] positions, BitSet strands, float[] weights, int sequenceLength){
+    this(chromosome, positions, strands, widen(weights), null, 1.0, sequenceLength, positions.length);
+  }
   
-  public KDEChromosome(String chromosome, Sequence[] cuts, int sequenceLength){
+  /*
+   * As above, for cuts merged from the given number of reads. Cut i stands for counts[i] reads
+   * (one if counts is null), of unitWeight each when there are no weights. Weights are kept in
+   * double so the density engines can read them without a copy of their own.
+   */
+  public KDEChromosome(String chromosome, int[] positions, BitSet strands, double[] weights, int[] counts, double unitWeight, int sequenceLength, long reads){
     _chromosome = chromosome;
-    _cuts = cuts;
-    _firstCut = cuts[0].getPosition();
-    _lastCut = cuts[cuts.length-1].getPosition();
+    _positions = positions;
+    _strands = strands;
+    _weights = weights;
+    _counts = counts;
+    _unitWeight = weights == null ? unitWeight : 1.0;
+    _firstCut = positions[0];
+    _lastCut = positions[positions.length-1];
     _sequenceLength = sequenceLength;
+    _reads = reads;
 
-    _totalWeight = 0.0d;
-    for(int i = 0; i < _cuts.length; i++) {
-      _totalWeight = _totalWeight + _cuts[i].getWeight();
+    if(weights == null) {
+      long n = positions.length;
+      if(_counts != null) {
+        n = 0;
+        for(int i = 0; i < _counts.length; i++)
+          n += _counts[i];
+      }
+      _totalWeight = n * _unitWeight;
+    } else {
+      _totalWeight = 0.0d;
+      for(int i = 0; i < weights.length; i++) {
+        _totalWeight = _totalWeight + weights[i];
+      }
+    }
+    
+    double run = 0.0;
+    _maxBaseWeight = 0.0;
+    for(int i = 0; i < positions.length; i++) {
+      if(i > 0 && positions[i] != positions[i-1])
+        run = 0.0;
+      run += Math.abs(getWeight(i));
+      _maxBaseWeight = Math.max(_maxBaseWeight, run);
     }
   }
   
+  private static double[] widen(float[] weights) {
+    if(weights == null)
+      return null;
+    double[] w = new double[weights.length];
+    for(int i = 0; i < weights.length; i++)
+      w[i] = weights[i];
+    return w;
+  }
+  
   public int getSequenceLength() {
 	  return _sequenceLength;
   }
   
-  public Sequence[] getCuts() {
-	  	return _cuts;
+  /*
+   * Number of reads merged into cut i, whatever their weights.
+   */
+  public int getReads(int i) {
+    return _counts == null ? 1 : _counts[i];
+  }
+  
+  public long getPosition(int i) {
+    return _positions[i];
+  }
+  
+  public boolean getStrand(int i) {
+    return _strands.get(i);
+  }
+  
+  public double getWeight(int i) {
+    if(_weights != null)
+      return _weights[i];
+    return _counts == null ? _unitWeight : _unitWeight * _counts[i];
+  }
+  
+  /*
+   * The sorted cut arrays themselves, for the density engines. Not copies.
+   */
+  int[] positions() {
+    return _positions;
+  }
+  
+  BitSet strands() {
+    return _strands;
+  }
+  
+  double[] weights() {
+    return _weights;
+  }
+  
+  int[] counts() {
+    return _counts;
+  }
+  
+  double unitWeight() {
+    return _unitWeight;
   }
   
   public String getChromosome(){
@@ -85,76 +181,74 @@ public class KDEChromosome {
   }
   
   public long getLength(){
-    return _cuts.length;
+    return _positions.length;
+  }
+
+  /*
+   * Number of reads the cuts were merged from, at least getLength().
+   */
+  public long getReadCount(){
+    return _reads;
   }
 
   public double getTotalWeight(){
 	    return _totalWeight;
   }
-  
-  public void run(Settings settings, DensityWriter dw, boolean verboseFlag, float wg_threshold) throws Exception {
-    
-//    _threshold = computeThreshold(settings);
-    _threshold = wg_threshold;
-    dw.setThreshold(_threshold);
-    
-//    if(verboseFlag){
-//    	System.out.println(_chromosome + ": Threshold: " + _threshold);
-//    }
-    
-    Sequence[] cuts = _cuts;
-//    long[] cuts = _cuts;
-    
-    float[] density = new float[BATCH_SIZE];
-    
-    if(verboseFlag){
-      System.out.println(_chromosome + ": first=" + _firstCut + ", last=" + _lastCut);
-      for(int i = 0; i < 20; ++i){
-        System.out.print(".");
+
+  /*
+   * Largest total weight of the cuts at any one position, both strands together.
+   */
+  public double getMaxBaseWeight(){
+    return _maxBaseWeight;
+  }
+
+  /*
+   * Heap bytes held by the cut arrays.
+   */
+  public long getCutBytes(){
+    long bytes = _positions.length * 4l + _positions.length / 8;
+    if(_weights != null)
+      bytes += _weights.length * 8l;
+    if(_counts != null)
+      bytes += _counts.length * 4l;
+    return bytes;
+  }
+
+  /*
+   * Rough number of heap bytes needed to run this chromosome: the cuts plus
+   * any background (.bff) and ploidy (.iff) track that run() will load.
+   * A .bff track expands every byte into two shorts, an .iff track stores
+   * one short per two bytes. Corrected runs also hold a copy of the cuts
+   * with their effective weights, and ChIP runs a copy split by strand.
+   */
+  public long estimateHeapCost(File[] bgfile, File[] ipfile, boolean chip){
+    return estimateHeapCost(_chromosome, _positions.length, getCutBytes(), _weights != null, _counts != null, bgfile, ipfile, chip);
+  }
+
+  /*
+   * As above, for ncuts cuts of a chromosome that is not loaded yet, held in cutBytes bytes.
+   */
+  static long estimateHeapCost(String chromosome, long ncuts, long cutBytes, boolean weighted, boolean counted,
+      File[] bgfile, File[] ipfile, boolean chip){
+    long cost = cutBytes + BATCH_SIZE * 4;
+    boolean tracks = false;
+    for(int j = 0; j < bgfile.length; ++j) {
+      if(bgfile[j].getName().equals(chromosome + ".bff")) {
+        cost += bgfile[j].length() * 4;
+        tracks = true;
       }
-      System.out.println();
     }
-    int numBases = (int)Math.abs(_lastCut - _firstCut);
-    
-    int incr =  numBases / 20;
-    int mod = BATCH_SIZE -1;
-    int peaks = 0;
-    
-    long start = System.currentTimeMillis();
-    int cutIdx = 0;
-    long currentChromPos = 0;
-    int arrPos = 0;
-    boolean aboveThreshold = false;
-    for(int i = 0; i < numBases; ++i){
-      currentChromPos = i + _firstCut;
-      arrPos = i % BATCH_SIZE;
-      density[arrPos] = (float)density(settings, currentChromPos, cutIdx, cuts);
-      
-      if(!aboveThreshold && density[arrPos] > _threshold){
-        aboveThreshold = true;
-        ++peaks;
-      }else if(aboveThreshold && density[arrPos] < _threshold){
-        aboveThreshold = false;
-      }
-      while(cutIdx < cuts.length && currentChromPos > cuts[cutIdx].getPosition())
-        ++cutIdx;
-      
-      if(verboseFlag && i % incr == 0)
-        System.out.print(".");
-      if(i % BATCH_SIZE == mod){
-        dw.writeDensity(density, 0, BATCH_SIZE); 
+    for(int j = 0; j < ipfile.length; ++j) {
+      if(ipfile[j].getName().equals(chromosome + ".iff")) {
+        cost += ipfile[j].length();
+        tracks = true;
       }
     }
-    
-    int len = numBases % BATCH_SIZE;
-    dw.writeDensity(density, 0, len);
-    
-    if(verboseFlag){
-      System.out.println();
-      System.out.println(_chromosome + ": Completed in " + (System.currentTimeMillis() - start)/1000d + " seconds.");
-      System.out.println(_chromosome + ": Found " + peaks + " peaks.");
-      System.out.println("-----------------------");
-    }
+    return cost + ExactKernel.preparedBytes(ncuts, tracks, weighted, counted, chip);
+  }
+
+  public void run(Settings settings, DensityWriter dw, boolean verboseFlag, float wg_threshold) throws Exception {
+    runTracks(new KDEChromosome[]{ this }, new Settings[]{ settings }, new DensityWriter[]{ dw }, verboseFlag, new float[]{ wg_threshold }, null, null, null, null);
   }
   
   /*
@@ -162,87 +256,35 @@ public class KDEChromosome {
    * density estimate based on this.
    */
   public void runBG(Settings settings, DensityWriter dw, boolean verboseFlag, float wg_threshold, File bgfile) throws Exception {
-//    _threshold = computeThreshold(settings);
-	    _threshold = wg_threshold;
-	    dw.setThreshold(_threshold);
-	    
 		WigChromosome bgchr = null;
 		try {
 			bgchr = BffReader.read(bgfile);
 		} catch (Exception e){
 			e.printStackTrace();
 		}
-//		System.out.println(chr.getChromosome());
-//		System.out.println(chr.getLength());
-//		System.out.println(chr.getStart());
-//	    if(verboseFlag){
-//	    	System.out.println(_chromosome + ": Threshold: " + _threshold);
-//	    }
-	    
-	    Sequence[] cuts = _cuts;
-//	    long[] cuts = _cuts;
-	    
-	    float[] density = new float[BATCH_SIZE];
-	    
-	    if(verboseFlag){
-	      System.out.println(_chromosome + ": first=" + _firstCut + ", last=" + _lastCut);
-	      for(int i = 0; i < 20; ++i){
-	        System.out.print(".");
-	      }
-	      System.out.println();
-	    }
-	    int numBases = (int)Math.abs(_lastCut - _firstCut);
-	    
-	    int incr =  numBases / 20;
-	    int mod = BATCH_SIZE -1;
-	    int peaks = 0;
-	    
-	    long start = System.currentTimeMillis();
-	    int cutIdx = 0;
-	    long currentChromPos = 0;
-	    int arrPos = 0;
-	    boolean aboveThreshold = false;
-	    for(int i = 0; i < numBases; ++i){
-	      currentChromPos = i + _firstCut;
-	      arrPos = i % BATCH_SIZE;
-	      density[arrPos] = (float)bgdensity(settings, currentChromPos, cutIdx, cuts, bgchr);
-	      
-	      if(!aboveThreshold && density[arrPos] > _threshold){
-	        aboveThreshold = true;
-	        ++peaks;
-	      }else if(aboveThreshold && density[arrPos] < _threshold){
-	        aboveThreshold = false;
-	      }
-	      while(cutIdx < cuts.length && currentChromPos > cuts[cutIdx].getPosition())
-	        ++cutIdx;
-	      
-	      if(verboseFlag && i % incr == 0)
-	        System.out.print(".");
-	      if(i % BATCH_SIZE == mod){
-	        dw.writeDensity(density, 0, BATCH_SIZE); 
-	      }
-	    }
-	    
-	    int len = numBases % BATCH_SIZE;
-	    dw.writeDensity(density, 0, len);
-	    
-	    if(verboseFlag){
-	      System.out.println();
-	      System.out.println(_chromosome + ": Completed in " + (System.currentTimeMillis() - start)/1000d + " seconds.");
-	      System.out.println(_chromosome + ": Found " + peaks + " peaks.");
-	      System.out.println("-----------------------");
-	    }
+		runTracks(new KDEChromosome[]{ this }, new Settings[]{ settings }, new DensityWriter[]{ dw }, verboseFlag, new float[]{ wg_threshold }, bgchr, null, null, null);
+  }
+
+  public void run(Settings settings, DensityWriter dw, boolean verboseFlag, float wg_threshold, File[] bgfile, File[] ipfile) throws Exception {
+    run(settings, dw, verboseFlag, wg_threshold, bgfile, ipfile, null);
   }
 
   /*
    * This function is the same as above but reads in a background uniqueness file and adjusts the
-   * density estimate based on this.
+   * density estimate based on this. If a pool is given the bases are computed in tiles on it.
    */
-  public void run(Settings settings, DensityWriter dw, boolean verboseFlag, float wg_threshold, File[] bgfile, File[] ipfile) throws Exception {
-//    _threshold = computeThreshold(settings);
-	    _threshold = wg_threshold;
-	    dw.setThreshold(_threshold);
-	    
+  public void run(Settings settings, DensityWriter dw, boolean verboseFlag, float wg_threshold, File[] bgfile, File[] ipfile, ForkJoinPool pool) throws Exception {
+    run(new KDEChromosome[]{ this }, new Settings[]{ settings }, new DensityWriter[]{ dw }, verboseFlag, new float[]{ wg_threshold }, bgfile, ipfile, pool, null);
+  }
+
+  /*
+   * Runs the same chromosome of several samples in one pass: each sample has its own cuts,
+   * settings, threshold and writer, while the background and ploidy tracks are read once and the
+   * samples' tiles are computed side by side along the chromosome. Verbose output names each
+   * sample by its label, or by the chromosome if labels is null.
+   */
+  public static void run(KDEChromosome[] chrs, Settings[] settings, DensityWriter[] dws, boolean verboseFlag, float[] wg_thresholds, File[] bgfile, File[] ipfile, ForkJoinPool pool, String[] labels) throws Exception {
+	    String chromosome = chrs[0]._chromosome;
 	    boolean bg_hit = false;
 	    boolean ip_hit = false;
 	    boolean bg_used = true;
@@ -255,14 +297,14 @@ public class KDEChromosome {
 	    	bg_used = false;
 	    } else {
 	    	for(int j = 0; j < bgfile.length; ++j) {
-	    		if(bgfile[j].getName().equals(_chromosome + ".bff")) {
+	    		if(bgfile[j].getName().equals(chromosome + ".bff")) {
 	    			bg_file_used = bgfile[j];
-	    			//System.out.println("Running background on Chromosome " + _chromosome);
+	    			//System.out.println("Running background on Chromosome " + chromosome);
 	    			bg_hit = true;
 	    		}
 	    	}
 	    	if(!bg_hit) {
-	    		System.out.println("No background for Chromosome " + _chromosome);
+	    		System.out.println("No background for Chromosome " + chromosome);
 	    		return;
 	    	}
 	    }
@@ -272,14 +314,14 @@ public class KDEChromosome {
 	    	ip_used = false;
 	    } else {
 	    	for(int j = 0; j < ipfile.length; ++j) {
-	    		if(ipfile[j].getName().equals(_chromosome + ".iff")) {
+	    		if(ipfile[j].getName().equals(chromosome + ".iff")) {
 	    			ip_file_used = ipfile[j];
-	    			//System.out.println("Running input on Chromosome " + _chromosome);
+	    			//System.out.println("Running input on Chromosome " + chromosome);
 	    			ip_hit = true;
 	    		}
 	    	}
 	    	if(!ip_hit) {
-	    		System.out.println("No input for Chromosome " + _chromosome);
+	    		System.out.println("No input for Chromosome " + chromosome);
 	    		return;
 	    	}
 	    }
@@ -301,81 +343,260 @@ public class KDEChromosome {
 	    		e.printStackTrace();
 	    	}
 	    }
-//		System.out.println(chr.getChromosome());
-//		System.out.println(chr.getLength());
-//		System.out.println(chr.getStart());
-//	    if(verboseFlag){
-//	    	System.out.println(_chromosome + ": Threshold: " + _threshold);
-//	    }
-	    
-	    Sequence[] cuts = _cuts;
-//	    long[] cuts = _cuts;
-	    
-	    float[] density = new float[BATCH_SIZE];
-	    
+	    runTracks(chrs, settings, dws, verboseFlag, wg_thresholds, bgchr, ipchr, pool, labels);
+  }
+
+  /*
+   * Computes the density over the whole chromosome in tiles of TILE_SIZE samples and hands them to
+   * the writers in order. Without a pool the tiles are computed one after another; with a pool up to
+   * twice its parallelism tiles are in flight and the queue of pending results acts as the reorder
+   * buffer. Every base sees the same cuts in the same order either way, so the output does not
+   * depend on the number of threads.
+   *
+   * With several samples a tile is a stretch of the chromosome, TILE_SIZE samples long, and holds
+   * the part of every sample's own range that falls into it. A single sample is tiled exactly as
+   * when it runs alone, and so is every sample's output. Samples with the same cuts and settings
+   * (a threshold sweep) share one density stream; a thresholded stream skips bases against the
+   * lowest of their thresholds.
+   */
+  private static void runTracks(final KDEChromosome[] chrs, Settings[] settings, DensityWriter[] dws, boolean verboseFlag, float[] wg_thresholds,
+      final WigChromosome bgchr, final WigChromosome ipchr, ForkJoinPool pool, String[] labels) throws Exception {
+	    final int n = chrs.length;
+	    // the writers of one run share the step
+	    final int step = dws[0].getStep();
+	    final int[] first = new int[n];
+	    final int[] numSamples = new int[n];
+	    final long[] origin = new long[n];  // position of each sample's first written base
+	    final DensityEngine[] engines = new DensityEngine[n];  // null where the density comes from another sample
+	    final int[] source = new int[n];
+	    String[] names = new String[n];
+	    long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
+	    for(int s = 0; s < n; ++s){
+	      KDEChromosome chr = chrs[s];
+//	      chr._threshold = chr.computeThreshold(settings[s]);
+	      chr._threshold = wg_thresholds[s];
+	      dws[s].setThreshold(chr._threshold);
+	      names[s] = labels == null ? chr._chromosome : labels[s];
+	      if(verboseFlag)
+	        System.out.println(names[s] + ": first=" + chr._firstCut + ", last=" + chr._lastCut);
+	      final int numBases = (int)Math.abs(chr._lastCut - chr._firstCut);
+	      // with a step the writer keeps every step-th base only, and only those are computed
+	      first[s] = dws[s].getFirstSample();
+	      numSamples[s] = first[s] >= numBases ? 0 : (numBases - 1 - first[s]) / step + 1;
+	      origin[s] = chr._firstCut + first[s];
+	      start = Math.min(start, origin[s]);
+	      end = Math.max(end, origin[s] + (long)numSamples[s] * step);
+	      
+	      source[s] = s;
+	      for(int r = 0; r < s && source[s] == s; ++r){
+	        if(source[r] == r && chrs[r] == chr && settings[r] == settings[s] && first[r] == first[s]
+	            && dws[r].isThresholded() == dws[s].isThresholded())
+	          source[s] = r;
+	      }
+	    }
+	    for(int s = 0; s < n; ++s){
+	      if(source[s] != s)
+	        continue;
+	      float lowest = wg_thresholds[s];
+	      for(int r = s + 1; r < n; ++r)
+	        if(source[r] == s)
+	          lowest = Math.min(lowest, wg_thresholds[r]);
+	      KDEChromosome chr = chrs[s];
+	      DensityEngine created = chr.createEngine(settings[s], bgchr, ipchr);
+	      if(dws[s].isThresholded() && settings[s].coarse > 0)
+	        created = new CoarseDensity(chr, created, settings[s], lowest);
+	      else if(dws[s].isThresholded())
+	        created = new PrunedDensity(chr, created, settings[s], lowest, bgchr, ipchr);
+	      engines[s] = created;
+	    }
 	    if(verboseFlag){
-	      System.out.println(_chromosome + ": first=" + _firstCut + ", last=" + _lastCut);
 	      for(int i = 0; i < 20; ++i){
 	        System.out.print(".");
 	      }
 	      System.out.println();
 	    }
-	    int numBases = (int)Math.abs(_lastCut - _firstCut);
+	    final long tileStart = start;
+	    final long tileBases = (long)TILE_SIZE * step;
+	    final int numTiles = (int)ceilDiv(end - start, tileBases);
+	    final int total = (int)ceilDiv(end - start, step);
 	    
-	    int incr =  numBases / 20;
-	    int mod = BATCH_SIZE -1;
-	    int peaks = 0;
+	    int incr =  Math.max(1, total / 20);
+	    int[] peaks = new int[n];
+	    boolean[] aboveThreshold = new boolean[n];
 	    
-	    long start = System.currentTimeMillis();
-	    int cutIdx = 0;
-	    long currentChromPos = 0;
-	    int arrPos = 0;
-	    boolean aboveThreshold = false;
-	    for(int i = 0; i < numBases; ++i){
-	      currentChromPos = i + _firstCut;
-	      arrPos = i % BATCH_SIZE;
-	      
-	      if(!bg_used && !ip_used) {
-	    	  density[arrPos] = (float)density(settings, currentChromPos, cutIdx, cuts);
-	      } else {
-	    	  if(bg_used && !ip_used) {
-	    		  density[arrPos] = (float)bgdensity(settings, currentChromPos, cutIdx, cuts, bgchr);
-	    	  } else {
-	    		  if(!bg_used && ip_used) {
-	    			  density[arrPos] = (float)ipdensity(settings, currentChromPos, cutIdx, cuts, ipchr);
-	    		  } else {
-	    			  density[arrPos] = (float)fulldensity(settings, currentChromPos, cutIdx, cuts, bgchr, ipchr);
-	    		  }
-	    	  }
+	    long startTime = System.currentTimeMillis();
+	    
+	    float[][] density = null;
+	    int[][] range = null;
+	    ArrayDeque<Future<float[][]>> pending = new ArrayDeque<Future<float[][]>>();
+	    int maxPending = pool == null ? 0 : pool.getParallelism() * 2;
+	    int nextTile = 0;
+	    for(int tile = 0; tile < numTiles; ++tile){
+	      range = sampleRanges(tile, tileStart, tileBases, step, origin, numSamples);
+	      if(pool == null){
+	        if(density == null)
+	          density = new float[n][TILE_SIZE];
+	        for(int s = 0; s < n; ++s){
+	          if(source[s] == s && range[s][0] < range[s][1])
+	            engines[s].computeSampled(first[s] + range[s][0] * step, step, range[s][1] - range[s][0], density[s]);
+	        }
+	      }else{
+	        // keep the pool busy ahead of the writers
+	        while(nextTile < numTiles && pending.size() < maxPending){
+	          final int[][] r = sampleRanges(nextTile, tileStart, tileBases, step, origin, numSamples);
+	          pending.add(pool.submit(new Callable<float[][]>(){
+	            public float[][] call() {
+	              float[][] out = new float[n][];
+	              for(int s = 0; s < n; ++s){
+	                if(source[s] != s){
+	                  out[s] = out[source[s]];
+	                  continue;
+	                }
+	                out[s] = new float[r[s][1] - r[s][0]];
+	                if(out[s].length > 0)
+	                  engines[s].computeSampled(first[s] + r[s][0] * step, step, out[s].length, out[s]);
+	              }
+	              return out;
+	            }
+	          }));
+	          ++nextTile;
+	        }
+	        try {
+	          density = pending.poll().get();
+	        } catch (ExecutionException e){
+	          for(Future<float[][]> f : pending)
+	            f.cancel(false);
+	          if(e.getCause() instanceof Exception)
+	            throw (Exception)e.getCause();
+	          throw e;
+	        }
 	      }
-//	    	  density[arrPos] = (float)bgdensity(settings, currentChromPos, cutIdx, cuts, bgchr);
 	      
-	      if(!aboveThreshold && density[arrPos] > _threshold){
-	        aboveThreshold = true;
-	        ++peaks;
-	      }else if(aboveThreshold && density[arrPos] < _threshold){
-	        aboveThreshold = false;
+	      for(int s = 0; s < n; ++s){
+	        float threshold = wg_thresholds[s];
+	        float[] d = density[source[s]];
+	        int len = range[s][1] - range[s][0];
+	        for(int j = 0; j < len; ++j){
+	          if(!aboveThreshold[s] && d[j] > threshold){
+	            aboveThreshold[s] = true;
+	            ++peaks[s];
+	          }else if(aboveThreshold[s] && d[j] < threshold){
+	            aboveThreshold[s] = false;
+	          }
+	        }
+	        for(int j = 0; j < len; j += BATCH_SIZE){
+	          dws[s].writeDensity(d, j, Math.min(BATCH_SIZE, len - j));
+	        }
 	      }
-	      while(cutIdx < cuts.length && currentChromPos > cuts[cutIdx].getPosition())
-	        ++cutIdx;
-	      
-	      if(verboseFlag && i % incr == 0)
-	        System.out.print(".");
-	      if(i % BATCH_SIZE == mod){
-	        dw.writeDensity(density, 0, BATCH_SIZE); 
+	      if(verboseFlag){
+	        for(int j = tile * TILE_SIZE; j < Math.min(total, (tile + 1) * TILE_SIZE); ++j)
+	          if(j % incr == 0)
+	            System.out.print(".");
 	      }
 	    }
 	    
-	    int len = numBases % BATCH_SIZE;
-	    dw.writeDensity(density, 0, len);
-	    
 	    if(verboseFlag){
 	      System.out.println();
-	      System.out.println(_chromosome + ": Completed in " + (System.currentTimeMillis() - start)/1000d + " seconds.");
-	      System.out.println(_chromosome + ": Found " + peaks + " peaks.");
-	      System.out.println("-----------------------");
+	      for(int s = 0; s < n; ++s){
+	        String name = names[s];
+	        DensityEngine engine = engines[s];
+	        System.out.println(name + ": Completed in " + (System.currentTimeMillis() - startTime)/1000d + " seconds.");
+	        if(engine instanceof CoarseDensity)
+	          ((CoarseDensity)engine).report(name);
+	        else if(engine instanceof PrunedDensity)
+	          ((PrunedDensity)engine).report(name);
+	        else if(engine instanceof PlannedDensity)
+	          ((PlannedDensity)engine).report(name);
+	        // a NaN threshold is not known yet, see DensitySpool
+	        if(!Float.isNaN(wg_thresholds[s]))
+	          System.out.println(name + ": Found " + peaks[s] + " peaks.");
+	        System.out.println("-----------------------");
+	      }
 	    }
   }
+
+  /*
+   * For every sample, the samples [from, to) that fall into the given tile of the chromosome.
+   */
+  private static int[][] sampleRanges(int tile, long tileStart, long tileBases, int step, long[] origin, int[] numSamples){
+    long lo = tileStart + tile * tileBases;
+    long hi = lo + tileBases;
+    int[][] range = new int[origin.length][2];
+    for(int s = 0; s < origin.length; ++s){
+      range[s][0] = (int)Math.max(0, Math.min(numSamples[s], ceilDiv(lo - origin[s], step)));
+      range[s][1] = (int)Math.max(0, Math.min(numSamples[s], ceilDiv(hi - origin[s], step)));
+    }
+    return range;
+  }
+
+  private static long ceilDiv(long a, long b){
+    return a >= 0 ? (a + b - 1) / b : -(-a / b);
+  }
+
+  private DensityEngine createEngine(Settings settings, WigChromosome bgchr, WigChromosome ipchr){
+    if(settings.engine == Engine.FFT)
+      return new FftDensity(this, settings, bgchr, ipchr);
+    if(settings.engine == Engine.RECURSIVE){
+      if(settings.experimentType == ExperimentType.CHIP || settings.kernel != Kernel.GAUSSIAN)
+        return new FftDensity(this, settings, bgchr, ipchr);
+      return new RecursiveGaussianDensity(this, settings, bgchr, ipchr);
+    }
+    if(settings.engine == Engine.AUTO || settings.engine == Engine.AUTO_APPROX)
+      return new PlannedDensity(this, settings, bgchr, ipchr);
+    return ExactKernel.create(this, settings, bgchr, ipchr);
+  }
+
+  /*
+   * Whether the scatter kernels run the scalar or the Vector API loop.
+   */
+  public static String kernelAddName(){
+    return KernelAdd.INSTANCE.toString();
+  }
+
+  /*
+   * Largest deviation of the RECURSIVE engine from the exact kernel for one cut of weight 1.
+   */
+  public static double recursiveKernelDeviation(Settings settings){
+    return RecursiveGaussianDensity.kernelDeviation(settings);
+  }
+
+  /*
+   * Index of the first cut at or after pos.
+   */
+  int lowerBound(long pos){
+    int lo = 0;
+    int hi = _positions.length;
+    while(lo < hi){
+      int mid = (lo + hi) >>> 1;
+      if(_positions[mid] < pos)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+  /*
+   * The factor the background and ploidy tracks apply to cut i, or 0 if the cut falls outside a
+   * track or on a zero value there. Reverse strand cuts are looked up at the start of the read.
+   */
+  double trackFactor(int i, WigChromosome bgdata, WigChromosome ipdata){
+    int shift = _strands.get(i) ? 0 : _sequenceLength;
+    double factor = 1.0;
+    if(bgdata != null){
+      int b = _positions[i] - bgdata.getStart() - shift;
+      if(b < 0 || b >= (int)bgdata.getLength() || bgdata.getValues()[b] <= 0)
+        return 0.0;
+      factor = (double)bgdata.getValues()[b];
+    }
+    if(ipdata != null){
+      int c = _positions[i] - ipdata.getStart() - shift;
+      if(c < 0 || c >= (int)ipdata.getLength() || ipdata.getValues()[c] <= 0)
+        return 0.0;
+      factor = factor / ((double)ipdata.getValues()[c]/1000d);
+    }
+    return factor;
+  }
+
   /*  
   private float computeThreshold(Settings settings){
     Random r = new Random();
@@ -404,362 +625,116 @@ public class KDEChromosome {
   }
 */
   
-  private static float density(Settings settings, long chromPos, int cutIdx, Sequence[] cuts){
-    
-    long minPos = chromPos - settings.window;
-    long maxPos = chromPos + settings.window;
-    
-    double[] PRECOMPUTE = settings.precompute;
-    
-    double sum = 0.0;
-    for(int i = cutIdx-1; i > -1; --i){
-      if (cuts[i].getPosition() < minPos) break;
-      int d = Math.abs((int)(cuts[i].getPosition() - chromPos));
-      if(settings.experimentType.equals("chip")) {
-    	  if(cuts[i].getStrand() && cuts[i].getPosition() <= chromPos) {
-    		  d = Math.abs((int)(cuts[i].getPosition() + settings.offset - chromPos));
-    	  } else if(!cuts[i].getStrand() && cuts[i].getPosition() >= chromPos) {
-          d = Math.abs((int)(cuts[i].getPosition() - settings.offset - chromPos));
-    	  } else {
-          continue;
+  /*
+   * Collects the cuts of one chromosome while a file is read and sorts them
+   * into the primitive arrays of a KDEChromosome. Cuts at the same position
+   * and on the same strand are merged into one cut carrying their summed
+   * weight, kept in double so a merged cut adds up exactly as its reads
+   * did; at a position the reverse strand cut comes first. While every
+   * read has the same weight no weights are stored, and merged cuts keep
+   * an integer read count instead.
+   */
+  public static class CutBuffer
+  {
+      private int[] positions = new int[1024];
+      private BitSet strands = new BitSet();
+      private float[] weights = null;
+      private float common = 1.0f;  // the weight of every read so far while weights is null
+      private int size = 0;
+      
+      public void add(long position, boolean strand, double weight) {
+        if(position < 0 || position > Integer.MAX_VALUE)
+          throw new IllegalArgumentException("Cut position " + position + " is outside the supported chromosome range.");
+        if(size == positions.length)
+          positions = Arrays.copyOf(positions, size + (size >> 1));
+        if(weights == null && size == 0)
+          common = (float)weight;
+        if(weights == null && (float)weight != common) {
+          weights = new float[positions.length];
+          Arrays.fill(weights, 0, size, common);
         }
-      }
-    	sum += settings.precompute[d] * cuts[i].getWeight();
-    }
-    
-    for(int i = cutIdx; i < cuts.length; ++i){
-      if (cuts[i].getPosition() > maxPos) break;
-      int d = Math.abs((int)(cuts[i].getPosition() - chromPos));
-      if(d > PRECOMPUTE.length-1)
-        throw new IllegalStateException();
-      if(settings.experimentType.equals("chip")) {
-    	  if(cuts[i].getStrand() && cuts[i].getPosition() <= chromPos) {
-    		  d = Math.abs((int)(cuts[i].getPosition() + settings.offset - chromPos));
-    	  } else if(!cuts[i].getStrand() && cuts[i].getPosition() >= chromPos) {
-          d = Math.abs((int)(cuts[i].getPosition() - settings.offset - chromPos));
-        } else {
-          continue;
+        if(weights != null) {
+          if(weights.length < positions.length)
+            weights = Arrays.copyOf(weights, positions.length);
+          weights[size] = (float)weight;
         }
+        positions[size] = (int)position;
+        if(strand)
+          strands.set(size);
+        ++size;
       }
-    	sum += settings.precompute[d] * cuts[i].getWeight();
-    }
-    
-    return (float)(sum / (double)settings.bandwidth);
-  }
-
-  private float bgdensity(Settings settings, long chromPos, int cutIdx, Sequence[] cuts, WigChromosome bgdata){
-    
-    long minPos = chromPos - settings.window;
-    long maxPos = chromPos + settings.window;
-    
-    double[] PRECOMPUTE = settings.precompute;
-   
-    int bgOffset = (int)_firstCut - bgdata.getStart(); //convert to 0 based
-    
-    double sum = 0.0;
-    int b = 0;
-    
-    for(int i = cutIdx-1; i > -1; --i){
-      if (cuts[i].getPosition() < minPos) 
-        break;
-      int d = Math.abs((int)(cuts[i].getPosition() - chromPos));
       
-      if(settings.experimentType.equals("chip")) {
-    		d = Math.abs((int)(cuts[i].getPosition() + (int)settings.offset - chromPos));
-    	  if(cuts[i].getStrand() && cuts[i].getPosition() <= chromPos) {
-    		  b = (int)cuts[i].getPosition() - bgdata.getStart(); //index of bg for particular sequence i
-    	  } else if(!cuts[i].getStrand() && cuts[i].getPosition() >= chromPos) {
-          b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength;
-    	  } else {
-          continue;
-        }
-      } else {
-    	  if(cuts[i].getStrand()) {
-    		  b = (int)cuts[i].getPosition() - bgdata.getStart(); //index of bg for particular sequence i
-    	  } else {
-    		  b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength; //index of bg for particular sequence i
-    	  }
+      public int size() {
+        return size;
       }
-		  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-			  sum += settings.precompute[d] * (double)bgdata.getValues()[b] * cuts[i].getWeight();
-		  }
-    }
-    
-    for(int i = cutIdx; i < cuts.length; ++i){
-      if (cuts[i].getPosition() > maxPos) break;
-      
-      int d = Math.abs((int)(cuts[i].getPosition() - chromPos));
-      
-      if(d > PRECOMPUTE.length-1)
-        throw new IllegalStateException();
       
-      if(settings.experimentType.equals("chip")) {
-    		d = Math.abs((int)(cuts[i].getPosition() + (int)settings.offset - chromPos));
-    	  if(cuts[i].getStrand() && cuts[i].getPosition() <= chromPos) {
-    		  b = (int)cuts[i].getPosition() -bgdata.getStart();
-    	  } else if(!cuts[i].getStrand() && cuts[i].getPosition() >= chromPos) {
-          b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength;
-        } else {
-          continue;
+      public KDEChromosome build(String chromosome, int sequenceLength) {
+        // position in the high word, then strand, then insertion order keeps the sort stable
+        long[] keys = new long[size];
+        for(int i = 0; i < size; ++i)
+          keys[i] = ((long)positions[i] << 32) | (strands.get(i) ? 0x80000000l : 0) | i;
+        Arrays.sort(keys);
+        
+        int n = 0;
+        for(int i = 0; i < size; ++i) {
+          if(i == 0 || keys[i] >>> 31 != keys[i-1] >>> 31)
+            ++n;
         }
-      } else {
-    	  if(cuts[i].getStrand()) {
-    		  b = (int)cuts[i].getPosition() - bgdata.getStart(); //index of bg for particular sequence i
-    	  } else {
-    		  b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength; //index of bg for particular sequence i
-    	  }
+        
+        int[] p = new int[n];
+        BitSet s = new BitSet(n);
+        double[] w = weights == null ? null : new double[n];
+        int[] c = n < size ? new int[n] : null;
+        int m = -1;
+        double sum = 0.0;
+        for(int i = 0; i < size; ++i) {
+          int j = (int)(keys[i] & 0x7fffffff);
+          if(i == 0 || keys[i] >>> 31 != keys[i-1] >>> 31) {
+            if(w != null && m >= 0)
+              w[m] = sum;
+            ++m;
+            sum = 0.0;
+            p[m] = positions[j];
+            if(strands.get(j))
+              s.set(m);
+          }
+          if(w != null)
+            sum += weights[j];
+          if(c != null)
+            ++c[m];
+        }
+        if(w != null && m >= 0)
+          w[m] = sum;
+        positions = null;
+        strands = null;
+        weights = null;
+        return new KDEChromosome(chromosome, p, s, w, c, common, sequenceLength, size);
       }
-		  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-			  sum += settings.precompute[d] * (double)bgdata.getValues()[b] * cuts[i].getWeight();
-		  }
-    }
-    
-    return (float)(sum / (double)settings.bandwidth);
   }
-  
-  private float ipdensity(Settings settings, long chromPos, int cutIdx, Sequence[] cuts, WigChromosome bgdata){
-	    
-	    long minPos = chromPos - settings.window;
-	    long maxPos = chromPos + settings.window;
-	    
-	    double[] PRECOMPUTE = settings.precompute;
-	   
-	    int bgOffset = (int)_firstCut - bgdata.getStart(); //convert to 0 based
-	    
-	    double sum = 0.0;
-	    int b = 0;
-	    
-	    for(int i = cutIdx-1; i > -1; --i){
-	      if (cuts[i].getPosition() < minPos) 
-	        break;
-	      int d = Math.abs((int)(cuts[i].getPosition() - chromPos));
-	      
-	      
-	      if(settings.experimentType.equals("chip")) {
-	    	  if(cuts[i].getStrand() && cuts[i].getPosition() <= chromPos) {
-	    		  d = Math.abs((int)(cuts[i].getPosition() + (int)settings.offset - chromPos));
-	    		  b = (int)cuts[i].getPosition() - bgdata.getStart(); //index of bg for particular sequence i
-	    		  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-	    			  sum += settings.precompute[d] / ((double)bgdata.getValues()[b]/1000d) * cuts[i].getWeight();
-	    		  }
-	    	  } else {
-	    		  if(!cuts[i].getStrand() && cuts[i].getPosition() >= chromPos) {
-	    			  d = Math.abs((int)(cuts[i].getPosition() - (int)settings.offset - chromPos));
-	    			  b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength;
-	        		  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-	        			  sum += settings.precompute[d] / ((double)bgdata.getValues()[b]/1000d) * cuts[i].getWeight();
-	        		  }  		  
-	    		  }
-	    	  }
-	      } else {
-	    	  if(cuts[i].getStrand()) {
-	    		  b = (int)cuts[i].getPosition() - bgdata.getStart(); //index of bg for particular sequence i
-	    	  } else {
-	    		  b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength; //index of bg for particular sequence i
-	    	  }
-			  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-				  sum += settings.precompute[d] / ((double)bgdata.getValues()[b]/1000d) * cuts[i].getWeight();
-			  }
-	      }
-	    }
-	    
-	    for(int i = cutIdx; i < cuts.length; ++i){
-	      if (cuts[i].getPosition() > maxPos) break;
-	      
-	      int d = Math.abs((int)(cuts[i].getPosition() - chromPos));
-	      
-	      if(d > PRECOMPUTE.length-1)
-	        throw new IllegalStateException();
-	      
-	      if(settings.experimentType.equals("chip")) {
-	    	  if(cuts[i].getStrand() && cuts[i].getPosition() <= chromPos) {
-	    		  d = Math.abs((int)(cuts[i].getPosition() + (int)settings.offset - chromPos));
-	    		  b = (int)cuts[i].getPosition() -bgdata.getStart();
-	    		  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-	    			  sum += settings.precompute[d] / ((double)bgdata.getValues()[b]/1000d) * cuts[i].getWeight();
-	    		  }
-	    	  } else {
-	    		  if(!cuts[i].getStrand() && cuts[i].getPosition() >= chromPos) {
-	    			  d = Math.abs((int)(cuts[i].getPosition() - (int)settings.offset - chromPos));
-	    			  b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength;
-	    			  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-	        			  sum += settings.precompute[d] / ((double)bgdata.getValues()[b]/1000d) * cuts[i].getWeight();
-	        		  }		  
-	    		  }
-	    	  }
-	      } else {
-	    	  if(cuts[i].getStrand()) {
-	    		  b = (int)cuts[i].getPosition() - bgdata.getStart(); //index of bg for particular sequence i
-	    	  } else {
-	    		  b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength; //index of bg for particular sequence i
-	    	  }
-			  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-				  sum += settings.precompute[d] / ((double)bgdata.getValues()[b]/1000d) * cuts[i].getWeight();
-			  }
-	      }
-	    }
-	    
-	    return (float)(sum / (double)settings.bandwidth);
-	  }
-  
-  private float fulldensity(Settings settings, long chromPos, int cutIdx, Sequence[] cuts, WigChromosome bgdata, WigChromosome ipdata){
-	    
-	    long minPos = chromPos - settings.window;
-	    long maxPos = chromPos + settings.window;
-	    
-	    double[] PRECOMPUTE = settings.precompute;
-	   
-	    int bgOffset = (int)_firstCut - bgdata.getStart(); //convert to 0 based
-	    
-	    double sum = 0.0;
-	    int b;
-	    int c;
-	    
-	    for(int i = cutIdx-1; i > -1; --i){
-	      if (cuts[i].getPosition() < minPos) 
-	        break;
-	      int d = Math.abs((int)(cuts[i].getPosition() - chromPos));
-	      
-	      
-	      if(settings.experimentType.equals("chip")) {
-	    	  if(cuts[i].getStrand() && cuts[i].getPosition() <= chromPos) {
-	    		  d = Math.abs((int)(cuts[i].getPosition() + (int)settings.offset - chromPos));
-	    		  b = (int)cuts[i].getPosition() - bgdata.getStart(); //index of bg for particular sequence i
-	    		  c = (int)cuts[i].getPosition() - ipdata.getStart(); //index of ip for particular sequence i
-	    		  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-	    			  if(c >= 0 && c < (int)ipdata.getLength() && ipdata.getValues()[c] > 0) {
-	    				  sum += settings.precompute[d] * (double)bgdata.getValues()[b] / ((double)ipdata.getValues()[c]/1000d) * cuts[i].getWeight();
-	    			  }
-	    		  }
-	    	  } else {
-	    		  if(!cuts[i].getStrand() && cuts[i].getPosition() >= chromPos) {
-	    			  d = Math.abs((int)(cuts[i].getPosition() - (int)settings.offset - chromPos));
-	    			  b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength;
-		    		  c = (int)cuts[i].getPosition() - ipdata.getStart() - _sequenceLength;
-	        		  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-		    			  if(c >= 0 && c < (int)ipdata.getLength() && ipdata.getValues()[c] > 0) {
-		    				  sum += settings.precompute[d] * (double)bgdata.getValues()[b] / ((double)ipdata.getValues()[c]/1000d) * cuts[i].getWeight();
-		    			  }
-	        		  }  		  
-	    		  }
-	    	  }
-	      } else {
-	    	  if(cuts[i].getStrand()) {
-	    		  b = (int)cuts[i].getPosition() - bgdata.getStart(); //index of bg for particular sequence i
-	    		  c = (int)cuts[i].getPosition() - ipdata.getStart();
-	    	  } else {
-	    		  b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength; //index of bg for particular sequence i
-	    		  c = (int)cuts[i].getPosition() - ipdata.getStart() - _sequenceLength;
-	    	  }
-    		  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-    			  if(c >= 0 && c < (int)ipdata.getLength() && ipdata.getValues()[c] > 0) {
-    				  sum += settings.precompute[d] * (double)bgdata.getValues()[b] / ((double)ipdata.getValues()[c]/1000d) * cuts[i].getWeight();
-    			  }
-    		  }  		
-	    	  //sum += settings.precompute[d] * cuts[i].getWeight();
-	      }
-	    }
-	    
-	    for(int i = cutIdx; i < cuts.length; ++i){
-	      if (cuts[i].getPosition() > maxPos) break;
-	      
-	      int d = Math.abs((int)(cuts[i].getPosition() - chromPos));
-	      
-	      if(d > PRECOMPUTE.length-1)
-	        throw new IllegalStateException();
-	      
-	      if(settings.experimentType.equals("chip")) {
-	    	  if(cuts[i].getStrand() && cuts[i].getPosition() <= chromPos) {
-	    		  d = Math.abs((int)(cuts[i].getPosition() + (int)settings.offset - chromPos));
-	    		  b = (int)cuts[i].getPosition() -bgdata.getStart();
-	    		  c = (int)cuts[i].getPosition() - ipdata.getStart();
-	    		  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-	    			  if(c >= 0 && c < (int)ipdata.getLength() && ipdata.getValues()[c] > 0) {
-	    				  sum += settings.precompute[d] * (double)bgdata.getValues()[b] / ((double)ipdata.getValues()[c]/1000) * cuts[i].getWeight();
-	    			  }	    		  }
-	    	  } else {
-	    		  if(!cuts[i].getStrand() && cuts[i].getPosition() >= chromPos) {
-	    			  d = Math.abs((int)(cuts[i].getPosition() - (int)settings.offset - chromPos));
-	    			  b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength;
-		    		  c = (int)cuts[i].getPosition() - ipdata.getStart() - _sequenceLength;
-	    			  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-		    			  if(c >= 0 && c < (int)ipdata.getLength() && ipdata.getValues()[c] > 0) {
-		    				  sum += settings.precompute[d] * (double)bgdata.getValues()[b] / ((double)ipdata.getValues()[c]/1000d) * cuts[i].getWeight();
-		    			  }	        		  }		  
-	    		  }
-	    	  }
-	      } else {
-	    	  if(cuts[i].getStrand()) {
-	    		  b = (int)cuts[i].getPosition() - bgdata.getStart(); //index of bg for particular sequence i
-	    		  c = (int)cuts[i].getPosition() - ipdata.getStart();
-	    	  } else {
-	    		  b = (int)cuts[i].getPosition() - bgdata.getStart() - _sequenceLength; //index of bg for particular sequence i
-	    		  c = (int)cuts[i].getPosition() - ipdata.getStart() - _sequenceLength;
-	    	  }
-    		  if(b >= 0 && b < (int)bgdata.getLength() && bgdata.getValues()[b] > 0) {
-    			  if(c >= 0 && c < (int)ipdata.getLength() && ipdata.getValues()[c] > 0) {
-    				  sum += settings.precompute[d] * (double)bgdata.getValues()[b] / ((double)ipdata.getValues()[c]/1000d) * cuts[i].getWeight();
-    			  }
-    		  }  		
-	    	  //sum += settings.precompute[d] * cuts[i].getWeight();
-	      }
-	    }
-	    
-	    return (float)(sum / (double)settings.bandwidth);
-	  }
-  
-  public static class Sequence implements Comparable
-  {
-      long position;
-      boolean strand;
-      double weight;
-      
-      public long getPosition() {
-    	  	return position;
-      }
-      
-      public boolean getStrand() {
-    	  	return strand;
-      }
 
-      public double getWeight() {
-          return weight;
-      }
-      
-      public void setPosition(long pos) {
-    	  this.position = pos;
-      }
-    
-      public void setStrand(boolean str) {
-    	  this.strand = str;
-      }
+  /*
+   * How the density is computed. EXACT sums the kernel over every cut in the window of every
+   * base; SCATTER computes the same sum cut by cut, skipping bases no cut reaches; FFT bins the
+   * cuts per base and convolves them with the kernel; RECURSIVE filters the binned cuts with a
+   * recursive approximation of the Gaussian (ChIP runs and other kernels fall back to FFT); AUTO picks
+   * EXACT, SCATTER or FFT for every tile from a cost model, and AUTO_APPROX may also pick RECURSIVE.
+   */
+  public enum Engine {
+    EXACT, SCATTER, FFT, RECURSIVE, AUTO, AUTO_APPROX
+  }
 
-      public void setWeight(double wt) {
-    	  this.weight = wt;
-      }
-      
-      public Sequence(long x, boolean y, double w) {
-          this.position = x;
-          this.strand = y;
-          this.weight = w;
-      }
-      
-      public Sequence() {
-    	  this.position = 0;
-    	  this.strand = false;
-        this.weight = 1.0f;
-      }
-      
-      //CompareTo overload
-      public int compareTo(Object obj) {
-    	  Sequence tmp = (Sequence)obj;
-    	  if(this.position < tmp.position) {
-    		  return -1;
-    	  }else if(this.position > tmp.position) {
-    		  return 1;
-    	  }
-    	  return 0;
-      }
+  /*
+   * The smoothing kernel. GAUSSIAN has standard deviation bandwidth and a window out to where it
+   * underflows a float. The others have the same variance and a window equal to their support:
+   * EPANECHNIKOV (1 - u^2) and TRIWEIGHT (1 - u^2)^3 on |u| <= 1, and BOX, which is flat and is
+   * summed as a sliding window total by the exact engine.
+   */
+  public enum Kernel {
+    GAUSSIAN, EPANECHNIKOV, TRIWEIGHT, BOX
+  }
+
+  public enum ExperimentType {
+    DNASE, CHIP, FAIRE, ATAC
   }
 
   public static class Settings {
@@ -772,46 +747,133 @@ public class KDEChromosome {
     public final int step;
     public final float threshold;
     public final int offset;
-    public final String experimentType;
+    public final ExperimentType experimentType;
     public final double ncuts;
+    public final Engine engine;
+    public final Kernel kernel;
+    public final int coarse;      // grid step of the coarse peak calling pass, 0 for off
+    public final boolean recall;  // also run the full density and report the coarse pass's recall
+    public final double windowError;  // worst case density error of a truncated window, 0 if not truncated
     
-    public Settings(long bandwidth, long window, float threshold, int offset, double ncuts, String inputDataType){
+    public Settings(long bandwidth, long window, float threshold, int offset, double ncuts, ExperimentType inputDataType, Engine engine, Kernel kernel, int coarse, boolean recall){
       this.bandwidth = bandwidth;
       this.window = window;
       this.threshold = threshold;
       this.offset = offset;
       this.step = 0;
       this.ncuts = ncuts;
+      this.engine = engine;
+      this.kernel = kernel;
+      this.coarse = coarse;
+      this.recall = recall;
+      this.windowError = 0.0;
       
       experimentType = inputDataType;//isDNase(offset);
-      precompute = precompute(window, bandwidth, ncuts);
+      precompute = precompute(kernel, window, bandwidth, ncuts);
     }
     
-    public Settings(long featureLength, float threshold, int offset, double ncuts, String inputDataType){
+    public Settings(long featureLength, float threshold, int offset, double ncuts, ExperimentType inputDataType, Engine engine, Kernel kernel, int coarse, boolean recall){
       this.bandwidth = computeBandwidth(featureLength);
-      this.window = computeOptimalWindow(bandwidth);
+      this.window = kernel == Kernel.GAUSSIAN ? computeOptimalWindow(bandwidth) : computeSupport(kernel, bandwidth);
       this.threshold = threshold;
       this.offset = offset;
       this.step = 0;
       this.ncuts = ncuts;
+      this.engine = engine;
+      this.kernel = kernel;
+      this.coarse = coarse;
+      this.recall = recall;
+      this.windowError = 0.0;
       
       experimentType = inputDataType;//isDNase(offset);
-      precompute = precompute(window, bandwidth, ncuts);
+      precompute = precompute(kernel, window, bandwidth, ncuts);
+    }
+    
+    private Settings(Settings full, long window, double windowError){
+      this.bandwidth = full.bandwidth;
+      this.window = window;
+      this.threshold = full.threshold;
+      this.offset = full.offset;
+      this.step = full.step;
+      this.ncuts = full.ncuts;
+      this.engine = full.engine;
+      this.kernel = full.kernel;
+      this.coarse = full.coarse;
+      this.recall = full.recall;
+      this.windowError = windowError;
+      
+      experimentType = full.experimentType;
+      precompute = Arrays.copyOf(full.precompute, (int)(window + 1));
+    }
+    
+    /*
+     * These settings with the smallest window that keeps the density within maxError of the full
+     * window, when no base carries more than maxBaseWeight of cuts. Leaving out the cuts beyond
+     * window changes a base by at most twice maxBaseWeight times the tail of the kernel table,
+     * from window - offset on for ChIP, over the bandwidth. Beyond the full window the kernel is
+     * below Float.MIN_VALUE and is not counted.
+     */
+    public Settings truncate(double maxError, double maxBaseWeight){
+      int shift = experimentType == ExperimentType.CHIP ? offset : 0;
+      // tail[d] is the sum of precompute[d..]
+      double[] tail = new double[precompute.length + 1];
+      for(int d = precompute.length - 1; d >= 0; --d)
+        tail[d] = tail[d + 1] + precompute[d];
+      double scale = 2 * maxBaseWeight / (double)bandwidth;
+      for(long w = shift; w < window; ++w){
+        double error = scale * tail[(int)Math.max(0, w + 1 - shift)];
+        if(error <= maxError)
+          return new Settings(this, w, error);
+      }
+      return this;
     }
     
     private static double sequenceNormalize(double value, double ncuts) {
   	  return ((value * 20000000d)/ncuts);
     }//Add this to all density outputs.
     
-    private static double[] precompute(long window, long bandwidth, double ncuts){
+    private static double[] precompute(Kernel kernel, long window, long bandwidth, double ncuts){
       double[] precompute = new double[(int)(window + 1)];
+      double a = supportWidth(kernel);
       for(int i = 0; i < precompute.length; ++i){
         double x = i / (double)bandwidth;
-        precompute[i] = sequenceNormalize( Math.exp(-(x * x) / 2) / PI2 , ncuts);
+        double v;
+        if(kernel == Kernel.GAUSSIAN){
+          v = Math.exp(-(x * x) / 2) / PI2;
+        }else if(x > a){
+          v = 0.0;
+        }else{
+          double u = x / a;
+          if(kernel == Kernel.EPANECHNIKOV)
+            v = 0.75 / a * (1 - u * u);
+          else if(kernel == Kernel.TRIWEIGHT)
+            v = 35.0 / 32.0 / a * (1 - u * u) * (1 - u * u) * (1 - u * u);
+          else
+            v = 0.5 / a;
+        }
+        precompute[i] = sequenceNormalize(v, ncuts);
       }
       return precompute;
     }
     
+    /*
+     * Half width of a compact kernel's support in standard deviations, so that it has the
+     * variance of the Gaussian with the same bandwidth.
+     */
+    private static double supportWidth(Kernel kernel){
+      if(kernel == Kernel.EPANECHNIKOV)
+        return Math.sqrt(5);
+      if(kernel == Kernel.TRIWEIGHT)
+        return 3.0;
+      if(kernel == Kernel.BOX)
+        return Math.sqrt(3);
+      return Double.POSITIVE_INFINITY;
+    }
+    
+    public static int computeSupport(Kernel kernel, long bandwidth){
+      return (int)(supportWidth(kernel) * bandwidth);
+    }
+    
     private static boolean isDNase(int offset){
     	if(offset == 0) {
     		return true;
@@ -0,0 +1,60 @@
+/*****************************************************************************
+  KernelAdd.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+
+package edu.duke.igsp.gkde;
+
+/**
+ * The inner loop of the scatter kernels: adds a weighted run of kernel
+ * values to a run of accumulated densities. This scalar version is a plain
+ * counted loop that HotSpot can auto-vectorize.
+ *
+ * If the optional Vector API build (src-vector, see README) is on the class
+ * path and the JVM runs with --add-modules jdk.incubator.vector, INSTANCE is
+ * the explicitly vectorized VectorKernelAdd instead. Both give the same
+ * values: every element is one multiply and one add in either case.
+ */
+class KernelAdd {
+
+  static final KernelAdd INSTANCE = load();
+
+  private static KernelAdd load(){
+    try {
+      return (KernelAdd)Class.forName("edu.duke.igsp.gkde.VectorKernelAdd").getDeclaredConstructor().newInstance();
+    } catch (Throwable e){
+      // not built, or the incubator module is not enabled
+      return new KernelAdd();
+    }
+  }
+
+  /*
+   * acc[accFrom + j] += kernel[kernelFrom + j] * w for j in [0, count).
+   */
+  void add(double[] acc, int accFrom, double[] kernel, int kernelFrom, int count, double w){
+    for(int j = 0; j < count; ++j)
+      acc[accFrom + j] += kernel[kernelFrom + j] * w;
+  }
+
+  public String toString(){
+    return "scalar";
+  }
+}
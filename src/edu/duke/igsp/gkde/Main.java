@@ -30,9 +30,12 @@ package edu.duke.igsp.gkde;
 import java.awt.Dimension;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.JFrame;
 
@@ -60,7 +63,7 @@ public class Main {
    
     Options opts = new Options();
     opts.addOption("s",true,"wiggle track step (default=1)");
-    opts.addOption("l",true, "feature length (default=600)");
+    opts.addOption("l",true, "feature length, or a comma separated list to sweep (default=600)");
     opts.addOption("f",true, "fragment size (default=estimated from data)");
 //    opts.addOption("b", true, "bandwidth (default=200)");
 //    opts.addOption("w", true, "window (default=3800");
@@ -97,22 +100,55 @@ public class Main {
       .withDescription(  "input data" )
       .isRequired(true)
       .create( "in" ));
+    opts.addOption(OptionBuilder.withArgName( "exact | scatter | fft | recursive | auto | auto-approx" )
+      .hasArg()
+      .withDescription(  "density engine (default exact); auto picks exact, scatter or fft per tile, auto-approx may also pick the approximate recursive filter" )
+      .isRequired(false)
+      .create( "engine" ));
+    opts.addOption(OptionBuilder.withArgName( "gaussian | epanechnikov | triweight | box" )
+      .hasArg()
+      .withDescription(  "smoothing kernel, or a comma separated list to sweep (default gaussian)" )
+      .isRequired(false)
+      .create( "kernel" ));
     opts.addOption(OptionBuilder.withArgName( "weight clip" )
       .hasArg()
       .withDescription(  "weight clip value (default none)" )
       .isRequired(false)
       .create( "wc" ));
-    opts.addOption("t", true, "threshold (standard deviations) (default=4.0)");
+    opts.addOption("t", true, "threshold (standard deviations), or a comma separated list to sweep (default=4.0)");
+    opts.addOption("threads", true, "number of worker threads (default=1)");
+    opts.addOption("maxerr", true, "shrink the window to the smallest with at most this absolute density error (default=off)");
+    opts.addOption("relerr", true, "as -maxerr, relative to the peak density of one read (default=off)");
+    opts.addOption("coarse", true, "bed/npf: find peaks from a grid of every n-th base first (default=off)");
+    opts.addOption("recall", false, "with -coarse, also run in full and report the recall");
+    opts.addOption("seed", true, "random seed of the genome-wide threshold simulation (default=random)");
+    opts.addOption("wgmodel", true, "genome-wide threshold from a simulation ('sim') or a Poisson model in closed form ('poisson') (default=sim)");
+    opts.addOption("wgcache", true, "file caching genome-wide thresholds between runs (default=none)");
+    opts.addOption("quantile", true, "bed/npf: threshold at this quantile (0-1) of the observed density instead of -t, or a comma separated list to sweep (default=off)");
+    opts.addOption("preview", true, "read only this fraction (0-1] of the reads, with their weights scaled up to full depth (default=1)");
+    opts.addOption("stream", false, "keep the reads in temporary files and load, run and release one chromosome at a time");
+    opts.addOption("samples", false, "treat every input file as a sample of its own and run them all in one pass");
 //    opts.addOption("r", true, "background ratio (default=2.0)");
     opts.addOption("v", false, "verbose output");
     
     CommandLineParser parser = new GnuParser();
-    int fragment_size = -1;
-    int fragment_offset = 0;
-    long featureLength = 600l;
+    int fragment_length = -1;
+    long[] featureLengths = { 600l };
 //    float thresh = 2;
-    float threshold = KDEChromosome.Settings.DEFAULT_THRESHOLD;
+    float[] thresholds = { KDEChromosome.Settings.DEFAULT_THRESHOLD };
+    float[] quantiles = null;
+    double preview = 1.0;
     int step = 1;
+    int threads = 1;
+    int coarse = 0;
+    double maxerr = 0.0;
+    double relerr = 0.0;
+    boolean recall = false;
+    boolean multi = false;
+    boolean stream = false;
+    Long seed = null;
+    boolean poisson = false;
+    File wgcache = null;
     boolean showHelp = false;
     boolean verbose = false;
     String inputDirectory = null;
@@ -122,12 +158,14 @@ public class Main {
     String[] bgfiles = {};
     String[] ipfiles = {};
     String outputFormat = "wig";
-    String inputDataType = "dnase";
+    KDEChromosome.ExperimentType inputDataType = KDEChromosome.ExperimentType.DNASE;
+    KDEChromosome.Engine engine = KDEChromosome.Engine.EXACT;
+    KDEChromosome.Kernel[] kernels = { KDEChromosome.Kernel.GAUSSIAN };
     File outputDirectory = new File(System.getProperty("user.dir"));
     
     long bandwidth = 0l;
     long window = 0l;
-  	double ncuts = 0.0d;
+  	double total_weight = 0.0d;
 	  float temp_threshold = 0f;
     int weight_clip = 0;
 
@@ -140,15 +178,19 @@ public class Main {
       if(cmd.hasOption("s"))
         step = Integer.parseInt(cmd.getOptionValue("s"));
       if(cmd.hasOption("f"))
-    	fragment_size = Integer.parseInt(cmd.getOptionValue("f"));
+    	fragment_length = Integer.parseInt(cmd.getOptionValue("f"));
       if(cmd.hasOption("d")) //input directory
         inputDirectory = cmd.getOptionValue("d");
       if(cmd.hasOption("b")) //background directory
         backgroundDirectory = cmd.getOptionValue("b");
       if(cmd.hasOption("p")) //ploidy|input directory
         ploidyDirectory = cmd.getOptionValue("p");
-      if(cmd.hasOption("l")) // bandwidth
-        featureLength = Long.parseLong(cmd.getOptionValue("l"));
+      if(cmd.hasOption("l")){ // feature length(s)
+        String[] l = cmd.getOptionValue("l").split(",");
+        featureLengths = new long[l.length];
+        for(int i = 0; i < l.length; ++i)
+          featureLengths[i] = Long.parseLong(l[i].trim());
+      }
       if(cmd.hasOption("of")){ // output format
         outputFormat = cmd.getOptionValue("of");
         if(!outputFormat.equals("wig") && !outputFormat.equals("bed") && !outputFormat.equals("npf")){
@@ -157,17 +199,136 @@ public class Main {
         }
       }
       if(cmd.hasOption("in")){ // input data type
-        inputDataType = cmd.getOptionValue("in");
-        if(!inputDataType.equals("dnase") && !inputDataType.equals("chip") && !inputDataType.equals("faire") && !inputDataType.equals("atac")){
+        String in = cmd.getOptionValue("in");
+        if(in.equals("dnase")) {
+          inputDataType = KDEChromosome.ExperimentType.DNASE;
+        } else if(in.equals("chip")) {
+          inputDataType = KDEChromosome.ExperimentType.CHIP;
+        } else if(in.equals("faire")) {
+          inputDataType = KDEChromosome.ExperimentType.FAIRE;
+        } else if(in.equals("atac")) {
+          inputDataType = KDEChromosome.ExperimentType.ATAC;
+        } else {
           System.out.println("Parameter error: input data type must be 'dnase', 'chip', 'faire', or 'atac'.");
           showHelp = true;
         }
       }
+      if(cmd.hasOption("engine")){ // density engine
+        String e = cmd.getOptionValue("engine");
+        if(e.equals("exact")) {
+          engine = KDEChromosome.Engine.EXACT;
+        } else if(e.equals("auto")) {
+          engine = KDEChromosome.Engine.AUTO;
+        } else if(e.equals("auto-approx")) {
+          engine = KDEChromosome.Engine.AUTO_APPROX;
+        } else if(e.equals("scatter")) {
+          engine = KDEChromosome.Engine.SCATTER;
+        } else if(e.equals("fft")) {
+          engine = KDEChromosome.Engine.FFT;
+        } else if(e.equals("recursive")) {
+          engine = KDEChromosome.Engine.RECURSIVE;
+        } else {
+          System.out.println("Parameter error: density engine must be 'exact', 'scatter', 'fft', 'recursive', 'auto' or 'auto-approx'.");
+          showHelp = true;
+        }
+      }
+      if(cmd.hasOption("kernel")){ // smoothing kernel
+        String[] ks = cmd.getOptionValue("kernel").split(",");
+        kernels = new KDEChromosome.Kernel[ks.length];
+        for(int i = 0; i < ks.length; ++i){
+          String k = ks[i].trim();
+          if(k.equals("gaussian")) {
+            kernels[i] = KDEChromosome.Kernel.GAUSSIAN;
+          } else if(k.equals("epanechnikov")) {
+            kernels[i] = KDEChromosome.Kernel.EPANECHNIKOV;
+          } else if(k.equals("triweight")) {
+            kernels[i] = KDEChromosome.Kernel.TRIWEIGHT;
+          } else if(k.equals("box")) {
+            kernels[i] = KDEChromosome.Kernel.BOX;
+          } else {
+            System.out.println("Parameter error: kernel must be 'gaussian', 'epanechnikov', 'triweight' or 'box'.");
+            showHelp = true;
+          }
+        }
+      }
       if(cmd.hasOption("wc")){ // weight clip
         weight_clip = Integer.parseInt(cmd.getOptionValue("wc"));
       }
       if(cmd.hasOption("t")){ // threshold (standard deviations)
-        threshold = Float.parseFloat(cmd.getOptionValue("t"));
+        String[] t = cmd.getOptionValue("t").split(",");
+        thresholds = new float[t.length];
+        for(int i = 0; i < t.length; ++i)
+          thresholds[i] = Float.parseFloat(t[i].trim());
+      }
+      if(cmd.hasOption("threads")){ // worker threads
+        threads = Integer.parseInt(cmd.getOptionValue("threads"));
+        if(threads < 1){
+          System.out.println("Parameter error: threads must be at least 1.");
+          showHelp = true;
+        }
+      }
+      if(cmd.hasOption("maxerr")){ // window truncation error
+        maxerr = Double.parseDouble(cmd.getOptionValue("maxerr"));
+        if(maxerr <= 0){
+          System.out.println("Parameter error: maxerr must be positive.");
+          showHelp = true;
+        }
+      }
+      if(cmd.hasOption("relerr")){ // relative window truncation error
+        relerr = Double.parseDouble(cmd.getOptionValue("relerr"));
+        if(relerr <= 0){
+          System.out.println("Parameter error: relerr must be positive.");
+          showHelp = true;
+        }
+      }
+      if(cmd.hasOption("coarse")){ // coarse peak calling grid
+        coarse = Integer.parseInt(cmd.getOptionValue("coarse"));
+        if(coarse < 1){
+          System.out.println("Parameter error: coarse grid step must be at least 1.");
+          showHelp = true;
+        }
+      }
+      recall = cmd.hasOption("recall");
+      multi = cmd.hasOption("samples");
+      stream = cmd.hasOption("stream");
+      if(cmd.hasOption("seed"))
+        seed = Long.valueOf(cmd.getOptionValue("seed"));
+      if(cmd.hasOption("wgmodel")){ // genome-wide threshold model
+        String m = cmd.getOptionValue("wgmodel");
+        if(m.equals("poisson")) {
+          poisson = true;
+        } else if(!m.equals("sim")) {
+          System.out.println("Parameter error: wgmodel must be 'sim' or 'poisson'.");
+          showHelp = true;
+        }
+      }
+      if(cmd.hasOption("wgcache"))
+        wgcache = new File(cmd.getOptionValue("wgcache"));
+      if(cmd.hasOption("preview")){ // fraction of the reads
+        preview = Double.parseDouble(cmd.getOptionValue("preview"));
+        if(preview <= 0 || preview > 1){
+          System.out.println("Parameter error: preview fraction must lie in (0, 1].");
+          showHelp = true;
+        }
+      }
+      if(cmd.hasOption("quantile")){ // threshold from the observed density
+        String[] q = cmd.getOptionValue("quantile").split(",");
+        quantiles = new float[q.length];
+        for(int i = 0; i < q.length; ++i){
+          quantiles[i] = Float.parseFloat(q[i].trim());
+          if(quantiles[i] <= 0 || quantiles[i] >= 1){
+            System.out.println("Parameter error: quantile must lie between 0 and 1.");
+            showHelp = true;
+          }
+        }
+        if(outputFormat.equals("wig")){
+          System.out.println("Parameter error: quantile thresholds need bed or npf output.");
+          showHelp = true;
+        }
+        if(cmd.hasOption("wg")){
+          System.out.println("Parameter error: quantile and wg both set the threshold.");
+          showHelp = true;
+        }
       }
       if(cmd.hasOption("o")){ // output directory
         String out = cmd.getOptionValue("o");
@@ -181,7 +342,7 @@ public class Main {
 		if(cmd.hasOption("wg"))
 			temp_threshold = Float.parseFloat(cmd.getOptionValue("wg"));
 		if(cmd.hasOption("c"))
-			ncuts = Double.parseDouble(cmd.getOptionValue("c"));
+			total_weight = Double.parseDouble(cmd.getOptionValue("c"));
 
       // TESTING ONLY
    //   if(cmd.hasOption("w")) // window
@@ -204,65 +365,205 @@ public class Main {
     }
     
     
-    File[] pfiles = getFiles(inputDirectory, files);
+    File[] inputfiles = getFiles(inputDirectory, files);
     File[] background_files = getFiles(backgroundDirectory, bgfiles);
     File[] ploidy_files = getFiles(ploidyDirectory, ipfiles);
 
-    KDEChromosome[] chrs = null;
-    // assume all files are of the same type, if not we'll get parsing errors
-    String path = pfiles[0].getPath();
-    String extension = path.substring(path.lastIndexOf('.')).toLowerCase();
-    System.out.println("Path: " + path + ", extension: " + extension);
-    if(extension.equals(".bed")) {
-      System.out.println("Parsing BED file.");
-      chrs = BedReader.read(pfiles);
-    } else if(extension.equals(".sam") || extension.equals(".bam")) {
-      System.out.println("Parsing SAM/BAM file.");
-      chrs = SamReader.read(pfiles, weight_clip);
+    // tiles of every running chromosome share one pool, so at most 'threads' cores compute at once
+    final ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+
+    // every input file is a sample of its own, or all of them together make up one
+    File[][] samplefiles = multi ? new File[inputfiles.length][] : new File[][]{ inputfiles };
+    File[] sampledirs = new File[samplefiles.length];
+    for(int n = 0; n < samplefiles.length; ++n){
+      if(multi)
+        samplefiles[n] = new File[]{ inputfiles[n] };
+      sampledirs[n] = multi ? outputSubdirectory(outputDirectory, sampleName(inputfiles[n])) : outputDirectory;
     }
-    //KDEChromosome[] input = BedReader.read(ifiles);
+    // a sweep runs every combination of feature length, kernel and threshold on each sample
+    // with quantiles the thresholds are taken from the observed density instead, see below
+    int levels = quantiles != null ? quantiles.length : thresholds.length;
+    boolean sweep = featureLengths.length > 1 || kernels.length > 1 || levels > 1;
+    // when streaming, runs hold the spilled cuts of their sample instead of the chromosomes
+    ArrayList<KDEChromosome[]> runchrs = new ArrayList<KDEChromosome[]>();
+    ArrayList<CutSpill[]> runspills = new ArrayList<CutSpill[]>();
+    ArrayList<KDEChromosome.Settings> runsettings = new ArrayList<KDEChromosome.Settings>();
+    ArrayList<Float> runthresholds = new ArrayList<Float>();
+    ArrayList<Float> runquantiles = new ArrayList<Float>();
+    ArrayList<File> rundirs = new ArrayList<File>();
+    ArrayList<String> runnames = new ArrayList<String>();
+
+    for(int n = 0; n < samplefiles.length; ++n){
+      KDEChromosome[] chrs = null;
+      CutSpill[] spills = null;
+      File[] pfiles = samplefiles[n];
+      int fragment_size = fragment_length;
+      double ncuts = total_weight;
+      if(verbose && multi)
+        System.out.println("Sample " + sampledirs[n].getName() + ": " + pfiles[0].getPath());
+      // assume all files are of the same type, if not we'll get parsing errors
+      String path = pfiles[0].getPath();
+      String extension = path.substring(path.lastIndexOf('.')).toLowerCase();
+      System.out.println("Path: " + path + ", extension: " + extension);
+      if(extension.equals(".bed")) {
+        System.out.println("Parsing BED file.");
+        if(stream)
+          spills = BedReader.spill(pfiles, preview, sampledirs[n]);
+        else
+          chrs = BedReader.read(pfiles, preview);
+      } else if(extension.equals(".sam") || extension.equals(".bam")) {
+        System.out.println("Parsing SAM/BAM file.");
+        if(stream)
+          spills = SamReader.spill(pfiles, weight_clip, preview, sampledirs[n]);
+        else
+          chrs = SamReader.read(pfiles, weight_clip, preview);
+      }
+      if(stream ? spills.length == 0 : chrs.length == 0){
+        System.out.println("No reads in " + path + (preview < 1 ? " at a preview fraction of " + preview : "") + ".");
+        System.exit(1);
+      }
+      //KDEChromosome[] input = BedReader.read(ifiles);
     
-    //compute fragment offset
-    if(fragment_size == -1) {
-    	fragment_size = wgShiftCalc(chrs);
-    }
-    fragment_offset = (int)(fragment_size/2);
+      //compute fragment offset
+      if(fragment_size == -1) {
+      	fragment_size = stream ? FragmentSize.estimate(spills, pool, verbose) : FragmentSize.estimate(chrs, pool, verbose);
+      }
+      int fragment_offset = (int)(fragment_size/2);
+
+      // genome-wide counts; spilled chromosomes have them from reading, without loading the cuts
+      double size = 0, weight = 0;
+      long reads = 0, cuts = 0;
+      int sequenceLength = stream ? (spills.length > 0 ? spills[0].getSequenceLength() : 0) : chrs[0].getSequenceLength();
+      for(int i = 0; i < (stream ? spills.length : chrs.length); ++i){
+        if(stream) {
+          size += (int)Math.abs(spills[i].getLastPos() - spills[i].getFirstPos());
+          weight += spills[i].getTotalWeight();
+          reads += spills[i].getReadCount();
+        } else {
+          size += (int)Math.abs(chrs[i].getLastPos() - chrs[i].getFirstPos());
+          weight += chrs[i].getTotalWeight();
+          reads += chrs[i].getReadCount();
+          cuts += chrs[i].getLength();
+        }
+      }
     
-	  if(ncuts == 0.0d) {
-	  	for(int i = 0; i < chrs.length; ++i){
-        // computes the total read weight of all cuts on a chromosome
- 	 		  ncuts += chrs[i].getTotalWeight();
-	  	}
-    }
+  	  if(ncuts == 0.0d) {
+        // the total read weight of all cuts on all chromosomes
+        ncuts = weight;
+      }
 
-    KDEChromosome.Settings settings = null;
-    if(bandwidth > 0 || window > 0){
-      settings = new KDEChromosome.Settings(bandwidth,window,threshold,fragment_offset, ncuts, inputDataType);
-    }else{
-      settings = new KDEChromosome.Settings(featureLength, threshold, fragment_offset, ncuts, inputDataType);
-    }
+      double maxBaseWeight = 0.0;
+      if(maxerr > 0 || relerr > 0){
+        // the weight on a base is only known from the merged cuts, so spilled chromosomes are loaded one by one
+        for(int i = 0; i < (stream ? spills.length : chrs.length); ++i)
+          maxBaseWeight = Math.max(maxBaseWeight, stream ? spills[i].load().getMaxBaseWeight() : chrs[i].getMaxBaseWeight());
+      }
+
+      // one Settings, and so one density, per feature length and kernel; the thresholds share it
+      for(int c = 0; c < featureLengths.length * kernels.length; ++c){
+        long featureLength = featureLengths[c / kernels.length];
+        KDEChromosome.Kernel kernel = kernels[c % kernels.length];
+        KDEChromosome.Settings settings = null;
+        if(bandwidth > 0 || window > 0){
+          settings = new KDEChromosome.Settings(bandwidth,window,thresholds[0],fragment_offset, ncuts, inputDataType, engine, kernel, coarse, recall);
+        }else{
+          settings = new KDEChromosome.Settings(featureLength, thresholds[0], fragment_offset, ncuts, inputDataType, engine, kernel, coarse, recall);
+        }
 
-	float wg_threshold = wgThreshold(settings, chrs);    
-	if(temp_threshold != 0f) {
-		wg_threshold = temp_threshold;
-	}
-    //KDEChromosome.Settings bg_settings = null;
-    //bg_settings = new KDEChromosome.Settings(featureLength*2, threshold, fragment_offset);
+        if(maxerr > 0 || relerr > 0){
+          double readPeak = settings.precompute[0] / (double)settings.bandwidth;
+          double err = maxerr > 0 ? maxerr : relerr * readPeak;
+          if(maxerr > 0 && relerr > 0)
+            err = Math.min(maxerr, relerr * readPeak);
+          settings = settings.truncate(err, maxBaseWeight);
+        }
+
+        float[] wg_thresholds;
+        if(quantiles != null) {
+          // known once the density of every chromosome is spooled
+          wg_thresholds = new float[levels];
+          Arrays.fill(wg_thresholds, Float.NaN);
+        } else if(temp_threshold != 0f) {
+          wg_thresholds = new float[levels];
+          Arrays.fill(wg_thresholds, temp_threshold);
+        } else {
+          wg_thresholds = wgThresholds(settings, size, weight, thresholds, seed, poisson, wgcache, preview, pool);
+        }
+        for(int t = 0; t < levels; ++t){
+          runchrs.add(chrs);
+          runspills.add(spills);
+          runsettings.add(settings);
+          runthresholds.add(wg_thresholds[t]);
+          runquantiles.add(quantiles != null ? quantiles[t] : Float.NaN);
+          String name = "l" + featureLength + (quantiles != null ? "-q" + quantiles[t] : "-t" + thresholds[t])
+              + (kernels.length > 1 ? "-" + kernel.toString().toLowerCase() : "");
+          rundirs.add(sweep ? outputSubdirectory(sampledirs[n], name) : sampledirs[n]);
+          if(multi)
+            runnames.add(sweep ? sampledirs[n].getName() + "/" + name : sampledirs[n].getName());
+          else
+            runnames.add(name);
+        }
+        //KDEChromosome.Settings bg_settings = null;
+        //bg_settings = new KDEChromosome.Settings(featureLength*2, threshold, fragment_offset);
     
 
-    //int background_size = 0;
-    //int input_size = 0;
-    //float bg_ratio = 0;
-    //float sd = 0;
-
-    if(verbose){
-        System.out.println("Settings: ");
-        System.out.println("\twindow=" + (settings.window * 2));
-        System.out.println("\tbandwidth=" + (settings.bandwidth));
-        //System.out.println("\tfragment offset=" + (settings.offset));
-    	System.out.println("\tthreshold = " + wg_threshold);
-    	System.out.println("\test. fragment size = " + fragment_size);
-    	System.out.println("\tsequence length = " + chrs[0].getSequenceLength());
+        //int background_size = 0;
+        //int input_size = 0;
+        //float bg_ratio = 0;
+        //float sd = 0;
+
+        if(verbose){
+            System.out.println("Settings: ");
+            if(sweep)
+              System.out.println("\tfeature length=" + featureLength);
+            System.out.println("\twindow=" + (settings.window * 2));
+            System.out.println("\tbandwidth=" + (settings.bandwidth));
+            System.out.println("\tkernel=" + settings.kernel.toString().toLowerCase());
+            if(maxerr > 0 || relerr > 0){
+              if(settings.windowError > 0)
+                System.out.println("\ttruncation error <= " + settings.windowError + " (largest weight on one base = " + maxBaseWeight + ")");
+              else
+                System.out.println("\t(no smaller window meets the error bound, using the full window)");
+              if(background_files.length > 0 || ploidy_files.length > 0)
+                System.out.println("\t(the bound scales with the largest background/ploidy factor)");
+            }
+            System.out.println("\tengine=" + settings.engine.toString().toLowerCase());
+            if(settings.engine == KDEChromosome.Engine.SCATTER || settings.engine == KDEChromosome.Engine.AUTO
+                || settings.engine == KDEChromosome.Engine.AUTO_APPROX)
+              System.out.println("\tscatter kernel add = " + KDEChromosome.kernelAddName());
+            if(settings.engine == KDEChromosome.Engine.RECURSIVE || settings.engine == KDEChromosome.Engine.AUTO_APPROX){
+              if(inputDataType == KDEChromosome.ExperimentType.CHIP) {
+                if(settings.engine == KDEChromosome.Engine.RECURSIVE)
+                  System.out.println("\t(chip kernels are one-sided, using fft instead)");
+              } else if(settings.kernel != KDEChromosome.Kernel.GAUSSIAN) {
+                if(settings.engine == KDEChromosome.Engine.RECURSIVE)
+                  System.out.println("\t(the recursive filter is gaussian only, using fft instead)");
+              } else {
+                double dev = KDEChromosome.recursiveKernelDeviation(settings);
+                double peak = settings.precompute[0] / (double)settings.bandwidth;
+                System.out.println("\trecursive filter max deviation = " + dev + " per unit weight (" + (float)(100 * dev / peak) + "% of kernel peak)");
+              }
+            }
+            if(settings.coarse > 0)
+              System.out.println("\tcoarse peak grid=" + settings.coarse + (outputFormat.equals("wig") ? " (not used for wig output)" : ""));
+            //System.out.println("\tfragment offset=" + (settings.offset));
+        	if(quantiles != null)
+        	  System.out.println("\tthreshold model = quantile of the observed density, known after the density pass");
+        	else if(temp_threshold == 0f)
+      	  System.out.println("\tthreshold model = " + (poisson ? "poisson" : "sim, seed " + (seed == null ? "random" : seed.toString())));
+      	for(int t = 0; t < thresholds.length && quantiles == null; ++t)
+        	  System.out.println("\tthreshold = " + wg_thresholds[t] + (sweep ? " (t=" + thresholds[t] + ")" : ""));
+        	System.out.println("\test. fragment size = " + fragment_size);
+        	System.out.println("\tsequence length = " + sequenceLength);
+        	if(stream)
+        	  System.out.println("\treads = " + reads + " (streamed, one chromosome in memory at a time)");
+        	else
+        	  System.out.println("\treads = " + reads + ", distinct cuts = " + cuts + " (compression " + (float)((double)reads / cuts) + "x)");
+        	if(preview < 1)
+        	  System.out.println("\tpreview of " + preview + " of the reads, each weighted " + (float)(1 / preview) + "x");
+        }
+    
+      }
     }
     
 //    if(backgroundDirectory != null) {
@@ -281,45 +582,294 @@ public class Main {
 //	    //System.out.println("Data standard deviation: " + settings.threshold * computeSD(settings, chrs));
 //    }
     
-    for(int i = 0; i < chrs.length; ++i){
-      if(chrs[i].getFirstPos() == chrs[i].getLastPos()){
-        System.out.println("Warning: " + chrs[i].getChromosome() + " has size zero.  Skipping.");
+    // the same chromosome of every sample and setting runs in one pass
+    LinkedHashMap<String, ArrayList<Integer>> groups = new LinkedHashMap<String, ArrayList<Integer>>();
+    for(int n = 0; n < runchrs.size(); ++n){
+      KDEChromosome[] chrs = runchrs.get(n);
+      CutSpill[] cs = runspills.get(n);
+      for(int i = 0; i < (stream ? cs.length : chrs.length); ++i){
+        String name = stream ? cs[i].getChromosome() : chrs[i].getChromosome();
+        if(stream ? cs[i].getFirstPos() == cs[i].getLastPos() : chrs[i].getFirstPos() == chrs[i].getLastPos()){
+          // a sweep runs the same cuts under every setting, warn once
+          if(n == 0 || (stream ? cs != runspills.get(n - 1) : chrs != runchrs.get(n - 1)))
+            System.out.println("Warning: " + name + " has size zero.  Skipping.");
+          continue;
+        }
+        if(!groups.containsKey(name))
+          groups.put(name, new ArrayList<Integer>());
+        groups.get(name).add(n);
+        groups.get(name).add(i);
+      }
+    }
+    
+    ArrayList<ChromosomeScheduler.Task> tasks = new ArrayList<ChromosomeScheduler.Task>();
+    ArrayList<DensitySpool[]> spools = new ArrayList<DensitySpool[]>();
+    long cutCost = 0;
+    for(ArrayList<Integer> group : groups.values()){
+      int size = group.size() / 2;
+      final DensitySpool[] sp = quantiles != null ? new DensitySpool[size] : null;
+      spools.add(sp);
+      final KDEChromosome[] chrs = stream ? null : new KDEChromosome[size];
+      final CutSpill[] cs = stream ? new CutSpill[size] : null;
+      final KDEChromosome.Settings[] s = new KDEChromosome.Settings[size];
+      final File[] od = new File[size];
+      final float[] wg = new float[size];
+      final String[] labels = multi || sweep ? new String[size] : null;
+      long cost = 0;
+      for(int k = 0; k < size; ++k){
+        int n = group.get(2 * k);
+        if(stream)
+          cs[k] = runspills.get(n)[group.get(2 * k + 1)];
+        else
+          chrs[k] = runchrs.get(n)[group.get(2 * k + 1)];
+        s[k] = runsettings.get(n);
+        od[k] = rundirs.get(n);
+        wg[k] = runthresholds.get(n);
+        if(labels != null)
+          labels[k] = (stream ? cs[k].getChromosome() : chrs[k].getChromosome()) + " (" + runnames.get(n) + ")";
+        // thresholds of a sweep share the cuts and the density of their settings
+        boolean shared = k > 0 && (stream ? cs[k] == cs[k - 1] : chrs[k] == chrs[k - 1]);
+        if(shared && s[k] == s[k - 1])
+          continue;
+        boolean chip = s[k].experimentType == KDEChromosome.ExperimentType.CHIP;
+        cost += stream ? cs[k].estimateHeapCost(background_files, ploidy_files, chip) : chrs[k].estimateHeapCost(background_files, ploidy_files, chip);
+        if(!stream && !shared)
+          cutCost += chrs[k].getCutBytes();
+      }
+      final String of = outputFormat;
+      final int st = step;
+      final boolean v = verbose;
+      final File[] bf = background_files;
+      final File[] pf = ploidy_files;
+      ChromosomeScheduler.Task task = new ChromosomeScheduler.Task(cost){
+        public void run() throws Exception {
+          // spilled cuts are loaded for the run only, and not needed again after it
+          KDEChromosome[] c = cs != null ? loadChromosomes(cs) : chrs;
+          try {
+            if(sp != null)
+              spoolChromosome(c, s, od, v, bf, pf, pool, labels, sp);
+            else
+              runChromosome(c, s, od, of, st, v, wg, bf, pf, pool, labels);
+          } finally {
+            for(int k = 0; cs != null && k < cs.length; ++k)
+              cs[k].delete();
+          }
+        }
+      };
+      if(threads == 1)
+        task.run();
+      else
+        tasks.add(task);
+    }
+    
+    if(!tasks.isEmpty()){
+      // the cuts are already resident, so they are counted in the used heap as well as in each task's cost
+      Runtime rt = Runtime.getRuntime();
+      long budget = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory()) + cutCost;
+      if(verbose)
+        System.out.println("Running " + tasks.size() + " chromosomes on " + threads + " threads, memory budget " + (budget >> 20) + "MB");
+      new ChromosomeScheduler(threads, budget).run(tasks);
+    }
+
+    if(quantiles != null){
+      // each run's threshold is a quantile of its density over all of its chromosomes
+      DensitySketch[] sketches = new DensitySketch[runchrs.size()];
+      for(int n = 0; n < sketches.length; ++n)
+        sketches[n] = new DensitySketch();
+      int g = 0;
+      for(ArrayList<Integer> group : groups.values()){
+        DensitySpool[] sp = spools.get(g++);
+        for(int k = 0; k < sp.length; ++k)
+          sketches[group.get(2 * k)].merge(sp[k].sketch);
+      }
+      for(int n = 0; n < sketches.length; ++n){
+        runthresholds.set(n, sketches[n].quantile(runquantiles.get(n)));
+        if(verbose)
+          System.out.println("Threshold " + runnames.get(n) + " = " + runthresholds.get(n) + " (quantile " + runquantiles.get(n) + " of " + sketches[n].count() + " bases)");
+      }
+
+      ArrayList<ChromosomeScheduler.Task> replays = new ArrayList<ChromosomeScheduler.Task>();
+      g = 0;
+      for(ArrayList<Integer> group : groups.values()){
+        int size = group.size() / 2;
+        final DensitySpool[] sp = spools.get(g++);
+        final String[] names = new String[size];
+        final long[] first = new long[size];
+        final File[] od = new File[size];
+        final float[] wg = new float[size];
+        final String[] labels = multi || sweep ? new String[size] : null;
+        for(int k = 0; k < size; ++k){
+          int n = group.get(2 * k);
+          int i = group.get(2 * k + 1);
+          names[k] = stream ? runspills.get(n)[i].getChromosome() : runchrs.get(n)[i].getChromosome();
+          first[k] = stream ? runspills.get(n)[i].getFirstPos() : runchrs.get(n)[i].getFirstPos();
+          od[k] = rundirs.get(n);
+          wg[k] = runthresholds.get(n);
+          if(labels != null)
+            labels[k] = names[k] + " (" + runnames.get(n) + ")";
+        }
+        if(threads == 1){
+          replayChromosome(names, first, od, outputFormat, step, verbose, wg, labels, sp);
+          continue;
+        }
+        final String of = outputFormat;
+        final int st = step;
+        final boolean v = verbose;
+        // the density streams from disk, only a batch of it is held per chromosome
+        replays.add(new ChromosomeScheduler.Task(0){
+          public void run() throws Exception {
+            replayChromosome(names, first, od, of, st, v, wg, labels, sp);
+          }
+        });
+      }
+      if(!replays.isEmpty())
+        new ChromosomeScheduler(threads, Long.MAX_VALUE).run(replays);
+    }
+    if(pool != null)
+      pool.shutdown();
+    
+    //kde.showGraph();
+  }
+ 
+  /*
+   * Runs one chromosome of every sample in chrs, writing each into its sample's output directory.
+   * labels name the samples in verbose output, null for a single sample.
+   */
+  private static void runChromosome(KDEChromosome[] chrs, Settings[] settings, File[] outputDirectories, String outputFormat, int step,
+      boolean verbose, float[] wg_thresholds, File[] background_files, File[] ploidy_files, ForkJoinPool pool, String[] labels) throws Exception {
+    String[] names = new String[chrs.length];
+    long[] first = new long[chrs.length];
+    for(int k = 0; k < chrs.length; ++k){
+      names[k] = chrs[k].getChromosome();
+      first[k] = chrs[k].getFirstPos();
+    }
+    DensityWriter[] dws = openWriters(names, first, outputDirectories, outputFormat, step);
+    KDEChromosome.run(chrs, settings, dws, verbose, wg_thresholds, background_files, ploidy_files, pool, labels);
+    for(int k = 0; k < dws.length; ++k)
+      dws[k].close();
+  }
+
+  /*
+   * Computes one chromosome of every sample in chrs into spools, for thresholds that are only known
+   * from the density of every chromosome. Samples with the same cuts and settings, which differ in
+   * their quantile only, share a spool.
+   */
+  private static void spoolChromosome(KDEChromosome[] chrs, Settings[] settings, File[] outputDirectories, boolean verbose,
+      File[] background_files, File[] ploidy_files, ForkJoinPool pool, String[] labels, DensitySpool[] spools) throws Exception {
+    ArrayList<Integer> distinct = new ArrayList<Integer>();
+    for(int k = 0; k < chrs.length; ++k){
+      if(k > 0 && chrs[k] == chrs[k - 1] && settings[k] == settings[k - 1]){
+        spools[k] = spools[k - 1];
         continue;
       }
-      File ofile = Util.makeUniqueFileWithExtension(outputDirectory, chrs[i].getChromosome(), outputFormat);
+      spools[k] = new DensitySpool(outputDirectories[k], chrs[k].getChromosome());
+      distinct.add(k);
+    }
+    int size = distinct.size();
+    KDEChromosome[] c = new KDEChromosome[size];
+    Settings[] s = new Settings[size];
+    DensityWriter[] dws = new DensityWriter[size];
+    float[] wg = new float[size];
+    String[] l = labels == null ? null : new String[size];
+    for(int j = 0; j < size; ++j){
+      int k = distinct.get(j);
+      c[j] = chrs[k];
+      s[j] = settings[k];
+      dws[j] = spools[k];
+      wg[j] = Float.NaN;
+      if(l != null)
+        l[j] = labels[k];
+    }
+    KDEChromosome.run(c, s, dws, verbose, wg, background_files, ploidy_files, pool, l);
+    for(int j = 0; j < size; ++j)
+      dws[j].close();
+  }
+
+  /*
+   * Writes one spooled chromosome of every sample, named names and starting at first, with its threshold.
+   */
+  private static void replayChromosome(String[] names, long[] first, File[] outputDirectories, String outputFormat, int step,
+      boolean verbose, float[] wg_thresholds, String[] labels, DensitySpool[] spools) throws Exception {
+    DensityWriter[] dws = openWriters(names, first, outputDirectories, outputFormat, step);
+    for(int k = 0; k < dws.length; ++k)
+      dws[k].setThreshold(wg_thresholds[k]);
+    for(int k = 0; k < dws.length; ){
+      int end = k + 1;
+      while(end < dws.length && spools[end] == spools[k])
+        ++end;
+      int[] peaks = spools[k].replay(Arrays.copyOfRange(dws, k, end), Arrays.copyOfRange(wg_thresholds, k, end));
+      if(verbose){
+        for(int j = k; j < end; ++j)
+          System.out.println((labels == null ? names[j] : labels[j]) + ": Found " + peaks[j - k] + " peaks.");
+      }
+      k = end;
+    }
+  }
+
+  /*
+   * A writer for one chromosome of every sample, named names and starting at first, each into its
+   * sample's output directory.
+   */
+  private static DensityWriter[] openWriters(String[] names, long[] first, File[] outputDirectories, String outputFormat, int step) throws IOException {
+    DensityWriter[] dws = new DensityWriter[names.length];
+    for(int k = 0; k < names.length; ++k){
+      File ofile;
+      // output files for concurrently running chromosomes must not race for the same unique name
+      synchronized(Main.class){
+        ofile = Util.makeUniqueFileWithExtension(outputDirectories[k], names[k], outputFormat);
+        ofile.createNewFile();
+      }
       
       DensityWriter dw = null;
       if(outputFormat.equals("wig")){
-        dw = new WiggleDensityWriter(ofile, chrs[i].getChromosome(), chrs[i].getFirstPos(), step);
+        dw = new WiggleDensityWriter(ofile, names[k], first[k], step);
       }else{
-    	if(outputFormat.equals("npf")) {
-    		dw = new NpfDensityWriter(ofile, chrs[i].getChromosome(), chrs[i].getFirstPos(), step);	
-    	} else {
-    		dw = new BedDensityWriter(ofile, chrs[i].getChromosome(), chrs[i].getFirstPos(), step);
-    	}
-      }
-
-      //Function takes all? or new function for each?
-//      if(backgroundDirectory != null) {
-//    	  boolean hit = false;
-//    	  for(int j = 0; j < background_files.length; ++j) {
-//    		  if(background_files[j].getName().equals(chrs[i].getChromosome() + ".bff")) {
-//    			  System.out.println("Running background on Chromosome " + chrs[i].getChromosome());
-//    			  chrs[i].runBG(settings, dw, verbose, wg_threshold, background_files[j]);
-//    			  hit = true;
-//    		  }
-//    	  }
-//    	  if(!hit)
-//    		  System.out.println("No background for Chromosome " + chrs[i].getChromosome());
-//      } else {
-//    	  if(ploidyDirectory !=)
-//    	  chrs[i].run(settings, dw, verbose, wg_threshold);
-//      }
-      chrs[i].run(settings, dw, verbose, wg_threshold, background_files, ploidy_files);
-      dw.close();
+        if(outputFormat.equals("npf")) {
+          dw = new NpfDensityWriter(ofile, names[k], first[k], step);	
+        } else {
+          dw = new BedDensityWriter(ofile, names[k], first[k], step);
+        }
+      }
+      dws[k] = dw;
     }
-    
-    //kde.showGraph();
+    return dws;
+  }
+
+  /*
+   * Loads spilled cuts, once for all the runs of a sweep that share them.
+   */
+  private static KDEChromosome[] loadChromosomes(CutSpill[] spills) throws IOException {
+    KDEChromosome[] chrs = new KDEChromosome[spills.length];
+    for(int k = 0; k < spills.length; ++k){
+      for(int j = 0; j < k && chrs[k] == null; ++j)
+        if(spills[j] == spills[k])
+          chrs[k] = chrs[j];
+      if(chrs[k] == null)
+        chrs[k] = spills[k].load();
+    }
+    return chrs;
+  }
+
+  /*
+   * The name of a sample: its input file's name without the extension.
+   */
+  private static String sampleName(File input){
+    String name = input.getName();
+    if(name.lastIndexOf('.') > 0)
+      name = name.substring(0, name.lastIndexOf('.'));
+    return name;
+  }
+
+  /*
+   * The output directory of one sample or one sweep setting, created if needed.
+   */
+  private static File outputSubdirectory(File outputDirectory, String name){
+    File dir = new File(outputDirectory, name);
+    if(!dir.isDirectory() && !dir.mkdirs()){
+      System.out.println("Could not create output directory " + dir.getPath() + ".");
+      System.exit(1);
+    }
+    return dir;
   }
  
   private static float computeSD(Settings settings, KDEChromosome[] chrs){
@@ -351,115 +901,41 @@ public class Main {
 	    return (float)(std);
 }
   
-  private static float wgThreshold(Settings settings, KDEChromosome[] chrs){
-	  	Random r = new Random();
-
-	  	double size = 0;
-	  	double ncuts = 0;
-	  
-	  	
-	  	for(int i = 0; i < chrs.length; ++i){
-	  		size += (int)Math.abs(chrs[i].getLastPos() - chrs[i].getFirstPos());
-	  		ncuts += chrs[i].getTotalWeight();
-	  	}
-	  	
+  /*
+   * The genome-wide threshold for each of several thresholds in standard deviations, all from one
+   * simulation of background densities, or from the Poisson model. With a cache file, results
+   * that do not change between runs (the Poisson model, or a seeded simulation) are reused.
+   * A preview has only a fraction of the reads, each weighted up, and so a noisier background.
+   * size is the total span of the chromosomes and ncuts their total read weight.
+   */
+  private static float[] wgThresholds(Settings settings, double size, double ncuts, float[] thresholds,
+      Long seed, boolean poisson, File cache, double preview, ForkJoinPool pool) throws Exception {
 	    int totalWindow = 1 + (int)(settings.window * 2);	  	
-	    int cutDensity = (int)((ncuts / size) * totalWindow);
-	    int thresholdIterations = 10000;
-	  	double[] densities = new double[thresholdIterations];
-	    double[] cuts = new double[cutDensity];
-	  	
-	    for(int i = 0; i < thresholdIterations; ++i){
-	      for(int j = 0; j < cuts.length; ++j)
-	        cuts[j] = r.nextInt(totalWindow);
-	      Arrays.sort(cuts);
-	      densities[i] = density(settings, (long)settings.window, (int)(cuts.length/2.0), cuts);
-	    }
+	    int cutDensity = (int)((ncuts * preview / size) * totalWindow);
+	    double rate = ncuts * preview / size;
 	    
-	    double mean = Util.mean(densities);
-	    double std = Util.std(densities);
+	    String key = (poisson ? "poisson" : "sim") + "/" + settings.kernel.toString().toLowerCase() + "/" + settings.window
+	        + "/" + settings.bandwidth + "/" + settings.ncuts + "/" + (poisson ? Double.toString(rate) : Integer.toString(cutDensity))
+	        + (poisson ? "" : "/" + seed);
+	    boolean cacheable = cache != null && (poisson || seed != null);
+	    BackgroundThreshold background = cacheable ? BackgroundThreshold.cached(cache, key) : null;
+	    if(background == null){
+	      if(poisson)
+	        background = BackgroundThreshold.poisson(settings, rate);
+	      else
+	        background = BackgroundThreshold.simulate(settings, cutDensity, seed, pool);
+	      if(cacheable)
+	        background.store(cache, key);
+	    }
 	    
-	    return (float)(mean + settings.threshold * std);
+	    if(preview < 1)
+	      background = background.scale(1 / preview);
+	    float[] wg = new float[thresholds.length];
+	    for(int i = 0; i < thresholds.length; ++i)
+	      wg[i] = background.threshold(thresholds[i]);
+	    return wg;
   } 
   
-  private static int wgShiftCalc(KDEChromosome chrs[]){
-//	  for(int i = 0; i < chrs.length; ++i) {
-		//These fragments are usually < 200bp so we can assume that the average is < 500
-		
-//	  }
-	  //Doing Wilcoxon-Mann-Whitney Rank Sum Test
-	  //Can compute confidence interval if necessary
-	  
-	  //get biggest chr for estimate
-	  int max_chr = 0;
-	  long max_chr_length = chrs[0].getLength();
-	  for(int i = 0; i < chrs.length; ++i){
-	  	if(chrs[i].getLength() > max_chr_length) {
-	  		max_chr = i;
-	  		max_chr_length = chrs[i].getLength(); //This is actually the size of the array - poor name
-	  	}
-	  }
-
-	  KDEChromosome.Sequence[] seqs = chrs[max_chr].getCuts();
-	  long cur_pos;
-	  long last_pos;
-	  ArrayList<Integer> d_temp = new ArrayList<Integer>();
-	  int k;
-	  
-	  for(k = 0; k < max_chr_length; ++k) {
-		  if(seqs[k].getStrand()) {
-			  break;
-		  }
-	  }
-	  
-	  int max_range = 500; //max search range for sequences
-	  int max = 1000000; //1 million is a good estimate
-	  int prior = 150;
-	  if(max > seqs.length - max_range-k) {
-		  max = seqs.length-max_range-k;
-	  }
-	  
-	  for(int j = k; j < k+max; ++j) {
-	  	if(j > max_chr_length) {
-	  		break;
-	  	}
-		  if(seqs[j].getStrand()) {
-			  last_pos = seqs[j].getPosition();
-			  int back_check = j - 10000;
-			  if(j < 10000) {
-				  back_check = j;
-			  }
-			  for(int i = back_check; i < j+10000; ++i) {
-				  if(i >= max) 
-					  break;
-				  if(!seqs[i].getStrand()) {
-					  if(Math.abs(seqs[i].getPosition()-last_pos-prior) < max_range) {
-						  Integer temp = new Integer((int)(seqs[i].getPosition()-last_pos));
-						  d_temp.add(temp);
-					  }
-				  }
-			  }
-		  }
-	  }
-	  
-      int[] d = new int[d_temp.size()];
-      for (int j = 0; j < d.length; ++j)
-        d[j] = d_temp.get(j).intValue();
-      
-      Arrays.sort(d);
-	  int median;
-	  if(d.length % 2 == 0) { //even
-		  median = (int)((double)(d[(int)Math.floor((double)d.length/2.0)] + d[(int)Math.ceil((double)d.length/2.0)])/2.0);
-	  } else {
-		  median = d[d.length/2];
-	  }
-	 // System.out.println("median " + median);
-	 // for(int m = 0; m < d.length; ++m) {
-	//	  System.out.println(d[m]);
-	 // }
-	  return median;
-  }
-  
   private static float density(Settings settings, long chromPos, int cutIdx, double[] cuts){
 	    
 	    long minPos = chromPos - settings.window;
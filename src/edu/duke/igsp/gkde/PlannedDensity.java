@@ -0,0 +1,146 @@
+/*****************************************************************************
+  PlannedDensity.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+
+package edu.duke.igsp.gkde;
+
+import edu.duke.igsp.gkde.KDEChromosome.ExperimentType;
+import edu.duke.igsp.gkde.KDEChromosome.Settings;
+import edu.duke.igsp.gkde.background.WigChromosome;
+
+/**
+ * Density engine that picks the cheapest of the other engines for every tile
+ * from a cost model of the tile's cuts, its length, the window and the
+ * experiment type. The cuts are counted after background and ploidy
+ * correction, so cuts a track removes do not count; read weights cost every
+ * engine the same and do not enter the model.
+ *
+ * The recursive filter only approximates the Gaussian, so it is a candidate
+ * for Engine.AUTO_APPROX only. Plain AUTO picks among the exact sums and the
+ * transform, whose error is that of double rounding.
+ *
+ * The model is in nanoseconds per unit of work. report() prints the choices
+ * with the predicted and the measured time of each engine so the constants
+ * can be checked against other data and machines.
+ */
+class PlannedDensity implements DensityEngine {
+
+  private static final int GATHER = 0, SCATTER = 1, FFT = 2, RECURSIVE = 3;
+  private static final String[] NAMES = { "exact", "scatter", "fft", "recursive" };
+
+  // fitted on a single core for bandwidths of 200 to 3000 on dense and sparse data
+  // per base of the tile, and per cut visit of the exact sum
+  private static final double GATHER_BASE = 9.0, GATHER_VISIT = 2.4;
+  // per base of the tile, and per kernel value added
+  private static final double SCATTER_BASE = 3.0, SCATTER_ADD = 1.1;
+  // per base and per cut binned into a histogram
+  private static final double BIN_BASE = 1.0, BIN_CUT = 5.0;
+  // per point and stage of a transform block, and per base of the filtered histogram
+  private static final double FFT_STAGE = 6.4, RECURSIVE_BASE = 14.0;
+
+  private final ExactKernel _gather;
+  private final DensityEngine[] _engines;
+  private final long _window;
+  private final boolean _chip;
+  private final boolean _box;
+  private final int _n;
+  private final int _logn;
+
+  private final long[] _tiles = new long[4];
+  private final double[] _predicted = new double[4];
+  private final long[] _actual = new long[4];
+
+  PlannedDensity(KDEChromosome chr, Settings settings, WigChromosome bgdata, WigChromosome ipdata){
+    _gather = ExactKernel.create(chr, settings, bgdata, ipdata).withScatter(false);
+    _window = settings.window;
+    _chip = settings.experimentType == ExperimentType.CHIP;
+    _box = settings.kernel == KDEChromosome.Kernel.BOX;
+    _n = FftDensity.blockSize((int)settings.window);
+    _logn = Integer.numberOfTrailingZeros(_n);
+
+    _engines = new DensityEngine[4];
+    _engines[GATHER] = _gather;
+    _engines[SCATTER] = _gather.withScatter(true);
+    _engines[FFT] = new FftDensity(chr, settings, bgdata, ipdata);
+    // the recursive filter only approximates the kernel, so it is left out unless asked for;
+    // ChIP kernels are one-sided, and it is a symmetric Gaussian
+    if(settings.engine == KDEChromosome.Engine.AUTO_APPROX && !_chip && settings.kernel == KDEChromosome.Kernel.GAUSSIAN)
+      _engines[RECURSIVE] = new RecursiveGaussianDensity(chr, settings, bgdata, ipdata);
+  }
+
+  public void compute(int from, int len, float[] density){
+    computeSampled(from, 1, len, density);
+  }
+
+  public void computeSampled(int from, int step, int count, float[] density){
+    int len = (count - 1) * step + 1;
+    int cuts = _gather.cutsInReach(_gather.firstCut + from, len);
+    double[] cost = cost(cuts, len, step);
+    int best = GATHER;
+    for(int e = 0; e < _engines.length; ++e){
+      if(_engines[e] != null && cost[e] < cost[best])
+        best = e;
+    }
+    long start = System.nanoTime();
+    _engines[best].computeSampled(from, step, count, density);
+    record(best, cost[best], System.nanoTime() - start);
+  }
+
+  /*
+   * Predicted nanoseconds of every engine for every step-th base of a tile of len bases that
+   * cuts cuts can reach. The exact engines only do the work for the sampled bases, the
+   * transform and the filter do all of it.
+   */
+  double[] cost(int cuts, int len, int step){
+    double samples = (len - 1) / step + 1;
+    double span = Math.min(2 * _window + 1, len) / (double)step;
+    double histLen = len + 2 * _window;
+    int valid = _n - (int)(2 * _window + 1) + 1;
+    long blocks = (len + valid - 1) / valid;
+
+    double[] cost = new double[4];
+    // the exact box kernel is a sliding total that visits every cut twice
+    cost[GATHER] = GATHER_BASE * samples + GATHER_VISIT * cuts * (_box ? 2 : span);
+    cost[SCATTER] = cuts == 0 ? samples : SCATTER_BASE * samples + SCATTER_ADD * cuts * (_chip ? (span + 1) / 2 : span);
+    cost[FFT] = BIN_BASE * histLen + BIN_CUT * cuts + blocks * FFT_STAGE * _n * _logn;
+    cost[RECURSIVE] = BIN_BASE * histLen + BIN_CUT * cuts + RECURSIVE_BASE * histLen;
+    return cost;
+  }
+
+  private synchronized void record(int engine, double predicted, long actual){
+    ++_tiles[engine];
+    _predicted[engine] += predicted;
+    _actual[engine] += actual;
+  }
+
+  /*
+   * Prints how many tiles each engine computed, with predicted and measured seconds.
+   */
+  synchronized void report(String chromosome){
+    for(int e = 0; e < _tiles.length; ++e){
+      if(_tiles[e] == 0)
+        continue;
+      System.out.println(chromosome + ": " + NAMES[e] + " engine for " + _tiles[e] + " tiles, predicted "
+          + (float)(_predicted[e] / 1e9) + " seconds, took " + (float)(_actual[e] / 1e9) + " seconds.");
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*****************************************************************************
+  PrunedDensity.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+
+package edu.duke.igsp.gkde;
+
+import java.util.Arrays;
+
+import edu.duke.igsp.gkde.KDEChromosome.Settings;
+import edu.duke.igsp.gkde.background.WigChromosome;
+
+/**
+ * Wraps a density engine for writers that only look at values above the
+ * threshold. No kernel value exceeds precompute[0], so the density of a base
+ * is at most precompute[0] / bandwidth times the positive cut weight within
+ * the window. Stretches whose bound is at or below the threshold are written
+ * as 0 without computing them; a prefix sum over the cut weights gives the
+ * bound of any stretch in two binary searches. The rest is computed by the
+ * wrapped engine, so values above the threshold and the peaks written from
+ * them are unchanged.
+ */
+class PrunedDensity implements DensityEngine {
+
+  // stretches are halved down to this many bases while their bound is above the threshold
+  private static final int MIN_BLOCK = 512;
+
+  private final KDEChromosome _chr;
+  private final DensityEngine _engine;
+  private final long _window;
+  private final double _peak;
+  private final float _threshold;
+  private final double[] _prefix;
+
+  private long _bases = 0;
+  private long _skipped = 0;
+
+  PrunedDensity(KDEChromosome chr, DensityEngine engine, Settings settings, float threshold, WigChromosome bgdata, WigChromosome ipdata){
+    _chr = chr;
+    _engine = engine;
+    _window = settings.window;
+    _peak = settings.precompute[0] / (double)settings.bandwidth;
+    _threshold = threshold;
+
+    boolean tracks = bgdata != null || ipdata != null;
+    int n = (int)chr.getLength();
+    _prefix = new double[n + 1];
+    for(int i = 0; i < n; ++i){
+      double w = chr.getWeight(i);
+      if(tracks)
+        w *= chr.trackFactor(i, bgdata, ipdata);
+      _prefix[i + 1] = _prefix[i] + Math.max(w, 0.0);
+    }
+  }
+
+  public void compute(int from, int len, float[] density){
+    // runs of bases that need computing, as from/length pairs relative to the tile
+    int[] runs = new int[2 * (2 * len / MIN_BLOCK + 2)];
+    int nruns = prune(from, 0, len, density, runs, 0);
+    float[] block = null;
+    long computed = 0;
+    for(int r = 0; r < nruns; r += 2){
+      int at = runs[r], n = runs[r + 1];
+      if(at == 0){
+        _engine.compute(from, n, density);
+      }else{
+        if(block == null)
+          block = new float[len];
+        _engine.compute(from + at, n, block);
+        System.arraycopy(block, 0, density, at, n);
+      }
+      computed += n;
+    }
+    count(len, len - computed);
+  }
+
+  public void computeSampled(int from, int step, int count, float[] density){
+    if(step == 1){
+      compute(from, count, density);
+      return;
+    }
+    _engine.computeSampled(from, step, count, density);
+    count(count, 0);
+  }
+
+  /*
+   * Zeroes density[at..at+len) where the bound allows, and appends the rest to runs, merged with
+   * the previous run when they touch. Returns the new length of runs.
+   */
+  private int prune(int tile, int at, int len, float[] density, int[] runs, int nruns){
+    long start = _chr.getFirstPos() + tile + at;
+    int lo = _chr.lowerBound(start - _window);
+    int hi = _chr.lowerBound(start + len + _window);
+    if((_prefix[hi] - _prefix[lo]) * _peak <= _threshold){
+      Arrays.fill(density, at, at + len, 0.0f);
+      return nruns;
+    }
+    if(len <= MIN_BLOCK){
+      if(nruns > 0 && runs[nruns - 2] + runs[nruns - 1] == at){
+        runs[nruns - 1] += len;
+        return nruns;
+      }
+      runs[nruns] = at;
+      runs[nruns + 1] = len;
+      return nruns + 2;
+    }
+    int half = len / 2;
+    nruns = prune(tile, at, half, density, runs, nruns);
+    return prune(tile, at + half, len - half, density, runs, nruns);
+  }
+
+  private synchronized void count(long bases, long skipped){
+    _bases += bases;
+    _skipped += skipped;
+  }
+
+  /*
+   * Prints the share of bases skipped, then the wrapped engine's report if it has one.
+   */
+  synchronized void report(String chromosome){
+    System.out.println(chromosome + ": skipped " + _skipped + " of " + _bases + " bases below the threshold bound ("
+        + (_bases == 0 ? 0 : (float)(100.0 * _skipped / _bases)) + "%).");
+    if(_engine instanceof PlannedDensity)
+      ((PlannedDensity)_engine).report(chromosome);
+  }
+}
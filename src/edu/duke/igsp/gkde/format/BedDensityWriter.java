@@ -60,6 +60,19 @@ public class BedDensityWriter implements DensityWriter{
     _threshold = threshold;
   }
   
+  // peaks are called from every base
+  public int getStep(){
+    return 1;
+  }
+  
+  public int getFirstSample(){
+    return 0;
+  }
+  
+  public boolean isThresholded(){
+    return true;
+  }
+  
   public void close() throws IOException {
     if(_aboveThreshold)
       doWrite();
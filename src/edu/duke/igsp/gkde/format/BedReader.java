@@ -31,10 +31,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 
+import edu.duke.igsp.gkde.CutSpill;
 import edu.duke.igsp.gkde.KDEChromosome;
 
 /**
@@ -50,13 +49,54 @@ import edu.duke.igsp.gkde.KDEChromosome;
 public class BedReader {
 
   public static KDEChromosome[] read(File[] files) throws IOException {
+    return read(files, 1.0);
+  }
+
+  /*
+   * Reads only a fraction of the reads, see ReadSampler, or all of them for a fraction of 1.
+   */
+  public static KDEChromosome[] read(File[] files, double fraction) throws IOException {
+    HashMap<String, KDEChromosome.CutBuffer> chrMap = new HashMap<String, KDEChromosome.CutBuffer>();
+    int sequenceLength = read(files, fraction, chrMap, null);
+
+    KDEChromosome[] chrs = new KDEChromosome[chrMap.size()];
+    int i = 0;
+    String[] chrnames = chrMap.keySet().toArray(new String[0]);
+    for (String chr : chrnames) {
+      KDEChromosome.CutBuffer currentCuts = chrMap.remove(chr);
+      chrs[i++] = currentCuts.build(chr, sequenceLength);
+    }
+    return chrs;
+  }
 
-    HashMap<String, ArrayList<KDEChromosome.Sequence>> chrMap = new HashMap<String, ArrayList<KDEChromosome.Sequence>>();
+  /*
+   * As above, with the cuts of every chromosome in a temporary file in directory instead of the
+   * heap, to be loaded one chromosome at a time.
+   */
+  public static CutSpill[] spill(File[] files, double fraction, File directory) throws IOException {
+    HashMap<String, KDEChromosome.CutBuffer> chrMap = new HashMap<String, KDEChromosome.CutBuffer>();
+    int sequenceLength = read(files, fraction, chrMap, directory);
 
+    CutSpill[] spills = new CutSpill[chrMap.size()];
+    int i = 0;
+    for (KDEChromosome.CutBuffer cuts : chrMap.values()) {
+      spills[i] = (CutSpill)cuts;
+      spills[i++].finish(sequenceLength);
+    }
+    return spills;
+  }
+
+  /*
+   * Adds every read to the buffer of its chromosome, a CutSpill in spillDirectory unless that is
+   * null. Returns the sequence length.
+   */
+  private static int read(File[] files, double fraction, HashMap<String, KDEChromosome.CutBuffer> chrMap, File spillDirectory) throws IOException {
     String currentChr = null;
-    ArrayList<KDEChromosome.Sequence> currentCuts = null;
+    KDEChromosome.CutBuffer currentCuts = null;
     boolean lengthSet = false;
     int sequenceLength = 0;
+    ReadSampler sampler = fraction < 1 ? new ReadSampler(fraction, false) : null;
+    long index = 0;
     
     for (int i = 0; i < files.length; ++i) {
 
@@ -69,17 +109,17 @@ public class BedReader {
 
         if (arr.length < 6)
           badFile(files[i]);
+        if (sampler != null && !sampler.keep(arr[3], index++))
+          continue;
 
         if (arr[0] != currentChr) {
           if (!chrMap.containsKey(arr[0])) {
-            chrMap.put(arr[0], new ArrayList<KDEChromosome.Sequence>());
+            chrMap.put(arr[0], spillDirectory == null ? new KDEChromosome.CutBuffer() : new CutSpill(arr[0], spillDirectory));
           }
           currentChr = arr[0];
           currentCuts = chrMap.get(arr[0]);
         }
         
-        KDEChromosome.Sequence seq = new KDEChromosome.Sequence();
-        
         try {
           long s = Long.parseLong(arr[1]);
           long e = Long.parseLong(arr[2]);
@@ -88,17 +128,18 @@ public class BedReader {
         	  sequenceLength = (int)diff;
         	  lengthSet = true;
           }
+          double weight = Float.parseFloat(arr[4]);
+          if(sampler != null)
+            weight = sampler.scale(weight);
           if(Math.abs(diff) > 1){
             //long mid = (long)Math.floor(diff / 2.0);
             if(arr[5].equals("+")) {
-            	seq = new KDEChromosome.Sequence(s, arr[5].equals("+"), Float.parseFloat(arr[4]));
+            	currentCuts.add(s, arr[5].equals("+"), weight);
             } else {
-            	seq = new KDEChromosome.Sequence(e, arr[5].equals("+"), Float.parseFloat(arr[4]));
+            	currentCuts.add(e, arr[5].equals("+"), weight);
             }
-            currentCuts.add(seq);
           }else{
-            seq = new KDEChromosome.Sequence(s, arr[5].equals("+"), Float.parseFloat(arr[4]));
-            currentCuts.add(seq);
+            currentCuts.add(s, arr[5].equals("+"), weight);
           }
         } catch (NumberFormatException e) {
           badFile(files[i]);
@@ -106,21 +147,7 @@ public class BedReader {
       }
     }
 
-    currentCuts = null;
-
-    KDEChromosome[] chrs = new KDEChromosome[chrMap.size()];
-    int i = 0;
-    String[] chrnames = chrMap.keySet().toArray(new String[0]);
-    for (String chr : chrnames) {
-      currentCuts = chrMap.remove(chr);
-      KDEChromosome.Sequence[] cuts = new KDEChromosome.Sequence[currentCuts.size()];
-      for (int j = 0; j < cuts.length; ++j)
-        cuts[j] = currentCuts.get(j);
-
-      Arrays.sort(cuts);
-      chrs[i++] = new KDEChromosome(chr, cuts, sequenceLength);
-    }
-    return chrs;
+    return sequenceLength;
   }
 
   private static void badFile(File f) throws IOException {
@@ -35,4 +35,19 @@ public interface DensityWriter {
   public void close() throws IOException;
   
   public void setThreshold(float threshold);
+  
+  /*
+   * A writer that keeps only every getStep()-th base, starting getFirstSample() bases after the
+   * first base of the chromosome, is given just those values by writeDensity. Writers that
+   * need every base return 1 and 0.
+   */
+  public int getStep();
+  
+  public int getFirstSample();
+  
+  /*
+   * True if the writer only uses the values above the threshold, so that values at or below it
+   * may be given as 0.
+   */
+  public boolean isThresholded();
 }
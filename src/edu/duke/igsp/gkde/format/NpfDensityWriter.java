@@ -77,6 +77,19 @@ public class NpfDensityWriter implements DensityWriter{
 	    _threshold = threshold;
 	  }
 	  
+	  // peaks are called from every base
+	  public int getStep(){
+	    return 1;
+	  }
+	  
+	  public int getFirstSample(){
+	    return 0;
+	  }
+	  
+	  public boolean isThresholded(){
+	    return true;
+	  }
+	  
 	  public void close() throws IOException {
 	    if(_aboveThreshold)
 	      doWrite();
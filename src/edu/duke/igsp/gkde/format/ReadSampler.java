@@ -0,0 +1,68 @@
+/*****************************************************************************
+  ReadSampler.java
+
+  Licensed under the GNU General Public License 3.0 license.
+
+  This file is part of F-seq.
+
+  F-seq is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  F-seq is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with F-seq.  If not, see <http://www.gnu.org/licenses/>.
+
+******************************************************************************/
+
+package edu.duke.igsp.gkde.format;
+
+/**
+ * Keeps a fraction of the reads for a quick preview, and scales the weight
+ * of the kept ones up by the inverse fraction so that the total weight, and
+ * with it the density and the thresholds, stay on the full-depth scale.
+ *
+ * A read is kept if a hash of it falls below the fraction, so the same
+ * reads are kept on every run. Where names are unique to a read or a pair
+ * (SAM/BAM), the hash is of the name alone, so that both mates of a pair
+ * are kept or dropped together whatever the order of the input. Where they
+ * need not be (BED, and tagAlign files name every read "N"), the number of
+ * the read in the input is hashed together with the name.
+ */
+public class ReadSampler {
+
+  private final double _fraction;
+  private final boolean _uniqueNames;
+
+  public ReadSampler(double fraction, boolean uniqueNames){
+    _fraction = fraction;
+    _uniqueNames = uniqueNames;
+  }
+
+  /*
+   * True if the read named name, the index-th read of the input, is kept. name may be null.
+   */
+  public boolean keep(String name, long index){
+    long h = index;
+    if(name != null && !name.equals(".") && !name.equals("*")) {
+      // FNV-1a, continued from the index where names may repeat
+      h = _uniqueNames ? 0xcbf29ce484222325l : (0xcbf29ce484222325l ^ index) * 0x100000001b3l;
+      for(int i = 0; i < name.length(); ++i)
+        h = (h ^ name.charAt(i)) * 0x100000001b3l;
+    }
+    // the splitmix64 finalizer spreads similar names over the whole range
+    h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9l;
+    h = (h ^ (h >>> 27)) * 0x94d049bb133111ebl;
+    h = h ^ (h >>> 31);
+    return (h >>> 11) * 0x1.0p-53 < _fraction;
+  }
+
+  public double scale(double weight){
+    return weight / _fraction;
+  }
+}
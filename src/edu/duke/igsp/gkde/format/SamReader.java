@@ -35,10 +35,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 
+import edu.duke.igsp.gkde.CutSpill;
 import edu.duke.igsp.gkde.KDEChromosome;
 
 import htsjdk.samtools.SAMRecord;
@@ -61,13 +60,54 @@ import htsjdk.samtools.ValidationStringency;
 public class SamReader {
 
   public static KDEChromosome[] read(File[] files, int weight_clip) throws IOException {
+    return read(files, weight_clip, 1.0);
+  }
+
+  /*
+   * Reads only a fraction of the reads, see ReadSampler, or all of them for a fraction of 1.
+   */
+  public static KDEChromosome[] read(File[] files, int weight_clip, double fraction) throws IOException {
+    HashMap<String, KDEChromosome.CutBuffer> chrMap = new HashMap<String, KDEChromosome.CutBuffer>();
+    int sequenceLength = read(files, weight_clip, fraction, chrMap, null);
+
+    KDEChromosome[] chrs = new KDEChromosome[chrMap.size()];
+    int i = 0;
+    String[] chrnames = chrMap.keySet().toArray(new String[0]);
+    for (String chr : chrnames) {
+      KDEChromosome.CutBuffer currentCuts = chrMap.remove(chr);
+      chrs[i++] = currentCuts.build(chr, sequenceLength);
+    }
+    return chrs;
+  }
 
-    HashMap<String, ArrayList<KDEChromosome.Sequence>> chrMap = new HashMap<String, ArrayList<KDEChromosome.Sequence>>();
+  /*
+   * As above, with the cuts of every chromosome in a temporary file in directory instead of the
+   * heap, to be loaded one chromosome at a time.
+   */
+  public static CutSpill[] spill(File[] files, int weight_clip, double fraction, File directory) throws IOException {
+    HashMap<String, KDEChromosome.CutBuffer> chrMap = new HashMap<String, KDEChromosome.CutBuffer>();
+    int sequenceLength = read(files, weight_clip, fraction, chrMap, directory);
 
+    CutSpill[] spills = new CutSpill[chrMap.size()];
+    int i = 0;
+    for (KDEChromosome.CutBuffer cuts : chrMap.values()) {
+      spills[i] = (CutSpill)cuts;
+      spills[i++].finish(sequenceLength);
+    }
+    return spills;
+  }
+
+  /*
+   * Adds every read to the buffer of its chromosome, a CutSpill in spillDirectory unless that is
+   * null. Returns the sequence length.
+   */
+  private static int read(File[] files, int weight_clip, double fraction, HashMap<String, KDEChromosome.CutBuffer> chrMap, File spillDirectory) throws IOException {
     String currentChr = null;
-    ArrayList<KDEChromosome.Sequence> currentCuts = null;
+    KDEChromosome.CutBuffer currentCuts = null;
     boolean lengthSet = false;
     int sequenceLength = 0;
+    ReadSampler sampler = fraction < 1 ? new ReadSampler(fraction, true) : null;
+    long index = 0;
     
     for (int i = 0; i < files.length; ++i) {
 
@@ -77,17 +117,17 @@ public class SamReader {
       final htsjdk.samtools.SamReader reader = factory.open(files[i]);
 
       for (final SAMRecord samRecord : reader) {
+        if (sampler != null && !sampler.keep(samRecord.getReadName(), index++))
+          continue;
         String chrom = samRecord.getReferenceName();
         if (chrom != currentChr) {
           if (!chrMap.containsKey(chrom)) {
-            chrMap.put(chrom, new ArrayList<KDEChromosome.Sequence>());
+            chrMap.put(chrom, spillDirectory == null ? new KDEChromosome.CutBuffer() : new CutSpill(chrom, spillDirectory));
           }
           currentChr = chrom;
           currentCuts = chrMap.get(chrom);
         }
         
-        KDEChromosome.Sequence seq = new KDEChromosome.Sequence();
-        
         try {
           long s = samRecord.getAlignmentStart();
           long e = samRecord.getAlignmentEnd();
@@ -109,12 +149,13 @@ public class SamReader {
           } catch (Exception ex) {
             weight = 1.0f;
           }
+          if(sampler != null)
+            weight = sampler.scale(weight);
           if(samRecord.getReadNegativeStrandFlag()) {
-            seq = new KDEChromosome.Sequence(s, false, weight);
+            currentCuts.add(s, false, weight);
           } else {
-            seq = new KDEChromosome.Sequence(e, true, weight);
+            currentCuts.add(e, true, weight);
           }
-          currentCuts.add(seq);
         } catch (NumberFormatException e) {
           badFile(files[i]);
         }
@@ -123,21 +164,7 @@ public class SamReader {
       reader.close();
     }
 
-    currentCuts = null;
-
-    KDEChromosome[] chrs = new KDEChromosome[chrMap.size()];
-    int i = 0;
-    String[] chrnames = chrMap.keySet().toArray(new String[0]);
-    for (String chr : chrnames) {
-      currentCuts = chrMap.remove(chr);
-      KDEChromosome.Sequence[] cuts = new KDEChromosome.Sequence[currentCuts.size()];
-      for (int j = 0; j < cuts.length; ++j)
-        cuts[j] = currentCuts.get(j);
-
-      Arrays.sort(cuts);
-      chrs[i++] = new KDEChromosome(chr, cuts, sequenceLength);
-    }
-    return chrs;
+    return sequenceLength;
   }
 
   private static void badFile(File f) throws IOException {
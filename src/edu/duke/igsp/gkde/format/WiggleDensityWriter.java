@@ -38,31 +38,40 @@ public class WiggleDensityWriter implements DensityWriter {
   private BufferedWriter bw;
   private int _step;
   private NumberFormat nf;
-  private int _step_cursor;
+  private int _firstSample;
   
   public WiggleDensityWriter(File f, String chr, long start, int step) throws IOException {
     bw = new BufferedWriter(new FileWriter(f));
     start++; // Wig is 1 based
     bw.write("fixedStep chrom=" + chr + " start=" + start + " step=" + step + "\n");
     this._step = step;
-	this._step_cursor = (int)start;
+    // the first base whose 1 based position is a multiple of the step
+    this._firstSample = (int)((step - start % step) % step);
     nf = NumberFormat.getNumberInstance();
     nf.setGroupingUsed(false);
     nf.setMaximumFractionDigits(4);
     nf.setMinimumFractionDigits(4);
   }
   
+  /*
+   * batch holds only the values of the bases the step keeps, see getFirstSample().
+   */
   public void writeDensity(float[] batch, int start, int length) throws IOException {
     int end = start + length;
-    // Include step function option:
-    // if(i % step == 0) { print }
-    for(int i = start; i < end; ++i) {
-    	if(_step_cursor % _step == 0) {
-    		bw.write(nf.format(batch[i]) + "\n");
-			_step_cursor = 0;
-    	}
-		_step_cursor++;
-  	}
+    for(int i = start; i < end; ++i)
+      bw.write(nf.format(batch[i]) + "\n");
+  }
+  
+  public int getStep() {
+    return _step;
+  }
+  
+  public int getFirstSample() {
+    return _firstSample;
+  }
+  
+  public boolean isThresholded() {
+    return false;
   }
   
   public void close() throws IOException {